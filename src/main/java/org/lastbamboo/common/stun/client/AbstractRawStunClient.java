@@ -0,0 +1,522 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for STUN clients that talk to servers over their own NIO
+ * channels rather than through MINA.  These clients only deal in binding
+ * requests and responses, which is all server reflexive address discovery
+ * needs.  Requests are always encoded from the configured
+ * {@link BindingRequestTemplate}, so any attributes on the requests
+ * themselves are ignored -- use {@link UdpStunClient} if you need the full
+ * STUN stack.  Subclasses define the transport.
+ */
+abstract class AbstractRawStunClient implements StunClient {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * How long blocking calls wait for the first of our servers to resolve.
+     */
+    private static final long SERVER_RESOLUTION_TIMEOUT = 15 * 1000L;
+
+    /**
+     * Our resolved servers.  Servers join as they resolve, so the order is
+     * the order they resolved in.
+     */
+    private final List<InetSocketAddress> m_stunServers =
+        new CopyOnWriteArrayList<InetSocketAddress>();
+
+    private final int m_serverCount;
+
+    /**
+     * Completes once we have at least one server, or once all our servers
+     * have failed to resolve.
+     */
+    private final CompletableFuture<Void> m_serversReady =
+        new CompletableFuture<Void>();
+
+    /**
+     * Completes once we've heard back about every server, whether it
+     * resolved or not.
+     */
+    private final CompletableFuture<Void> m_serversResolved =
+        new CompletableFuture<Void>();
+
+    /**
+     * The index of the server we're currently using.  We move on to the
+     * next server whenever one fails.
+     */
+    private final AtomicInteger m_serverIndex = new AtomicInteger();
+
+    /**
+     * The local address to bind to, or <code>null</code> for an ephemeral
+     * port on all interfaces.
+     */
+    protected final InetSocketAddress m_originalLocalAddress;
+
+    protected final TransactionTable m_pendingTransactions =
+        new TransactionTable(StunClientConfig.getMaxPendingTransactions());
+
+    /**
+     * Completes our transactions, directly on the I/O thread unless we're
+     * configured with an executor.
+     */
+    protected final RawResponseHandler m_responseHandler =
+        new RawResponseHandler(this.m_pendingTransactions,
+            StunClientConfig.getExecutor());
+
+    protected final BindingRequestTemplate m_template =
+        StunClientConfig.getBindingRequestTemplate();
+
+    /**
+     * Creates a new client.
+     *
+     * @param localAddress The local address to bind to, or
+     * <code>null</code> for an ephemeral port on all interfaces.
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we don't have any STUN servers.
+     */
+    AbstractRawStunClient(final InetSocketAddress localAddress,
+        final Collection<InetSocketAddress> stunServers) throws IOException {
+        if (stunServers == null) {
+            m_log.error("Null STUN servers");
+            throw new NullPointerException("Null STUN servers");
+        }
+        if (stunServers.isEmpty()) {
+            m_log.warn("Could not get STuN addresses!!");
+            throw new IOException("No STUN addresses returned!");
+        }
+        this.m_originalLocalAddress = localAddress;
+        this.m_serverCount = stunServers.size();
+
+        // Resolve all the servers in parallel without holding up the
+        // caller.  Anything that needs a server waits for the first one.
+        final AtomicInteger remaining = new AtomicInteger(m_serverCount);
+        for (final InetSocketAddress isa : stunServers) {
+            StunServerResolver.resolve(isa).whenComplete(
+                new BiConsumer<InetSocketAddress, Throwable>() {
+                @Override
+                public void accept(final InetSocketAddress resolved,
+                    final Throwable t) {
+                    if (t != null) {
+                        m_log.warn("DNSSEC verification error!!", t);
+                    } else if (resolved.isUnresolved()) {
+                        // We can't send to an unresolved address.
+                        m_log.warn("Could not resolve STUN server: {}",
+                            resolved);
+                    } else {
+                        m_stunServers.add(resolved);
+                        m_serversReady.complete(null);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        m_serversReady.complete(null);
+                        m_serversResolved.complete(null);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Waits for the first of our servers to resolve, or for all of them to
+     * fail to.
+     */
+    private void awaitServers() throws IOException {
+        if (m_serversReady.isDone()) {
+            return;
+        }
+        try {
+            m_serversReady.get(SERVER_RESOLUTION_TIMEOUT,
+                TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted resolving STUN servers");
+        } catch (final ExecutionException e) {
+            // We never complete it exceptionally.
+            throw new IOException("Could not resolve STUN servers", e);
+        } catch (final TimeoutException e) {
+            throw new IOException("Timed out resolving STUN servers");
+        }
+    }
+
+    /**
+     * Returns a future that completes once we've heard back about every
+     * server, for callers that want to choose among all of them.  It never
+     * completes exceptionally.
+     *
+     * @return The future.
+     */
+    CompletableFuture<Void> getServersResolved() {
+        return m_serversResolved;
+    }
+
+    /**
+     * Registers transactions for all the specified requests and sends them.
+     *
+     * @param requests The requests.
+     * @param remoteAddress The server to send them to.
+     * @param rto The RTO for retransmissions, for transports that need them.
+     * @return The transactions, in the same order as the requests.
+     * @throws IOException If we can't send the requests.
+     */
+    abstract List<StunClientTransaction> startTransactions(
+        Collection<BindingRequest> requests, InetSocketAddress remoteAddress,
+        long rto) throws IOException;
+
+    /**
+     * Creates transactions for all the specified requests and adds them to
+     * our table until they complete.
+     *
+     * @param requests The requests.
+     * @param remoteAddress The server the requests are for.
+     * @return The transactions, in the same order as the requests.
+     */
+    List<StunClientTransaction> newTransactions(
+        final Collection<BindingRequest> requests,
+        final InetSocketAddress remoteAddress) {
+        final List<StunClientTransaction> txs =
+            new ArrayList<StunClientTransaction>(requests.size());
+        for (final BindingRequest request : requests) {
+            final StunClientTransaction tx =
+                new StunClientTransaction(request, remoteAddress);
+            this.m_pendingTransactions.put(tx);
+            tx.getFuture().whenComplete(
+                new BiConsumer<StunMessage, Throwable>() {
+                @Override
+                public void accept(final StunMessage response,
+                    final Throwable t) {
+                    m_pendingTransactions.remove(tx);
+                }
+            });
+            txs.add(tx);
+        }
+        return txs;
+    }
+
+    /**
+     * Gives up on everything still outstanding, typically on close.
+     */
+    void abandonTransactions() {
+        for (final StunClientTransaction tx :
+            this.m_pendingTransactions.getTransactions()) {
+            tx.abandon();
+        }
+    }
+
+    public InetSocketAddress getServerReflexiveAddress() throws IOException {
+        awaitServers();
+        final CompletableFuture<InetSocketAddress> future =
+            getServerReflexiveAddressAsync();
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            m_log.info("Interrupt", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IOException("Interrupted getting server reflexive address");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not get server reflexive address!",
+                cause);
+        }
+    }
+
+    @Override
+    public CompletableFuture<InetSocketAddress>
+        getServerReflexiveAddressAsync() {
+        return getServerReflexiveAddressAsync(0L);
+    }
+
+    /**
+     * Gets the server reflexive address, giving each server at most the
+     * specified time to answer before moving on to the next one.  This lets
+     * callers with an overall deadline fail over within it rather than
+     * waiting out a dead server's full transaction timeout.
+     *
+     * @param attemptTimeout How long to wait for each server in 
+     * milliseconds, or 0 to wait for each transaction to time out.
+     * @return The future server reflexive address.
+     */
+    CompletableFuture<InetSocketAddress> getServerReflexiveAddressAsync(
+        final long attemptTimeout) {
+        final CompletableFuture<InetSocketAddress> future =
+            new CompletableFuture<InetSocketAddress>();
+        if (m_serversReady.isDone()) {
+            getServerReflexiveAddressAsync(future, 0, attemptTimeout);
+            return future;
+        }
+
+        // Wait for our servers to resolve without blocking.
+        m_serversReady.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getServerReflexiveAddressAsync(future, 0, attemptTimeout);
+                } catch (final RuntimeException e) {
+                    // Nobody would ever see this otherwise.
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Tries the current server, moving on to the next one each time a
+     * server fails until we've tried them all.
+     */
+    private void getServerReflexiveAddressAsync(
+        final CompletableFuture<InetSocketAddress> future, final int attempt,
+        final long attemptTimeout) {
+        if (future.isDone()) {
+            return;
+        }
+        if (attempt >= this.m_stunServers.size()) {
+            future.completeExceptionally(
+                new IOException("Could not get server reflexive address!"));
+            return;
+        }
+        final int index = this.m_serverIndex.get();
+        final InetSocketAddress server = serverAt(index);
+        m_log.info("Getting server reflexive address from: {}", server);
+        final CompletableFuture<StunMessage> response;
+        try {
+            response = writeAsync(new BindingRequest(), server);
+        } catch (final IOException e) {
+            onServerReflexiveFailure(future, server, index, attempt,
+                attemptTimeout, e);
+            return;
+        }
+        final HashedTimerWheel.Timeout timer;
+        if (attemptTimeout > 0L) {
+            timer = RetransmissionSchedule.TIMER.schedule(
+                new HashedTimerWheel.TimerTask() {
+                @Override
+                public void run(final HashedTimerWheel.Timeout t) {
+                    // Cancelling kicks off the next attempt, which can
+                    // block, so get off the timer thread first.
+                    StunExecutors.FAILOVER.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (response.cancel(false)) {
+                                m_log.info("No answer from {} in {}ms",
+                                    server, attemptTimeout);
+                            }
+                        }
+                    });
+                }
+            }, attemptTimeout, TimeUnit.MILLISECONDS);
+        } else {
+            timer = null;
+        }
+        response.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                if (timer != null) {
+                    timer.cancel();
+                }
+                if (message instanceof BindingSuccessResponse) {
+                    future.complete(
+                        ((BindingSuccessResponse) message).getMappedAddress());
+                } else {
+                    onServerReflexiveFailure(future, server, index, attempt,
+                        attemptTimeout, t);
+                }
+            }
+        });
+    }
+
+    private void onServerReflexiveFailure(
+        final CompletableFuture<InetSocketAddress> future,
+        final InetSocketAddress server, final int index, final int attempt,
+        final long attemptTimeout, final Throwable t) {
+        if (t != null && !(t instanceof CancellationException)) {
+            m_log.info("Error getting server reflexive address from: " +
+                server, t);
+        }
+
+        // Only move on if nobody else already has.
+        this.m_serverIndex.compareAndSet(index, index + 1);
+        getServerReflexiveAddressAsync(future, attempt + 1, attemptTimeout);
+    }
+
+    /**
+     * Accessor for the server we're currently using, waiting for the first
+     * of our servers to resolve if need be.
+     *
+     * @return The current server.
+     * @throws IOException If none of our servers resolved.
+     */
+    InetSocketAddress getStunServer() throws IOException {
+        awaitServers();
+        if (this.m_stunServers.isEmpty()) {
+            throw new IOException("No STUN addresses returned!");
+        }
+        return serverAt(this.m_serverIndex.get());
+    }
+
+    private InetSocketAddress serverAt(final int index) {
+        return this.m_stunServers.get(
+            Math.floorMod(index, this.m_stunServers.size()));
+    }
+
+    public StunMessage write(final BindingRequest request,
+        final InetSocketAddress remoteAddress) throws IOException {
+        return write(request, remoteAddress, RttTable.getRto(remoteAddress));
+    }
+
+    public StunMessage write(final BindingRequest request,
+            final InetSocketAddress remoteAddress, final long rto)
+            throws IOException {
+        final CompletableFuture<StunMessage> future =
+            writeAsync(request, remoteAddress, rto);
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            m_log.info("Interrupt", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return new NullStunMessage();
+        } catch (final ExecutionException e) {
+            m_log.warn("Error writing to: " + remoteAddress, e);
+            return new NullStunMessage();
+        }
+    }
+
+    @Override
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress)
+        throws IOException {
+        return writeAsync(request, remoteAddress,
+            RttTable.getRto(remoteAddress));
+    }
+
+    @Override
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress,
+        final long rto) throws IOException {
+        return startTransactions(Collections.singletonList(request),
+            remoteAddress, rto).get(0).getFuture();
+    }
+
+    @Override
+    public List<StunMessage> writeAll(final Collection<BindingRequest> requests,
+        final InetSocketAddress remoteAddress) throws IOException {
+        final List<CompletableFuture<StunMessage>> futures =
+            writeAllAsync(requests, remoteAddress);
+        final List<StunMessage> responses =
+            new ArrayList<StunMessage>(futures.size());
+        for (final CompletableFuture<StunMessage> future : futures) {
+            try {
+                responses.add(future.get());
+            } catch (final InterruptedException e) {
+                m_log.info("Interrupt", e);
+                Thread.currentThread().interrupt();
+                for (final CompletableFuture<StunMessage> f : futures) {
+                    f.cancel(false);
+                }
+                throw new IOException("Interrupted writing requests");
+            } catch (final ExecutionException e) {
+                m_log.warn("Error writing to: " + remoteAddress, e);
+                responses.add(new NullStunMessage());
+            }
+        }
+        return responses;
+    }
+
+    @Override
+    public List<CompletableFuture<StunMessage>> writeAllAsync(
+        final Collection<BindingRequest> requests,
+        final InetSocketAddress remoteAddress) throws IOException {
+        final List<StunClientTransaction> txs = startTransactions(requests,
+            remoteAddress, RttTable.getRto(remoteAddress));
+        final List<CompletableFuture<StunMessage>> futures =
+            new ArrayList<CompletableFuture<StunMessage>>(txs.size());
+        for (final StunClientTransaction tx : txs) {
+            futures.add(tx.getFuture());
+        }
+        return futures;
+    }
+
+    /**
+     * Accessor for the number of transactions that are still waiting for a
+     * response.
+     *
+     * @return The number of outstanding transactions.
+     */
+    public int getPendingTransactions() {
+        return this.m_pendingTransactions.size();
+    }
+
+    /**
+     * Accessor for the resolved addresses of our STUN servers.  This only
+     * includes the servers that have resolved so far.
+     *
+     * @return The STUN servers.
+     */
+    List<InetSocketAddress> getStunServers() {
+        return Collections.unmodifiableList(this.m_stunServers);
+    }
+
+    /**
+     * Accessor for the number of STUN servers we were given, whether or not
+     * they've resolved.
+     *
+     * @return The number of STUN servers.
+     */
+    int getServerCount() {
+        return this.m_serverCount;
+    }
+
+    public InetAddress getStunServerAddress() {
+        try {
+            return getStunServer().getAddress();
+        } catch (final IOException e) {
+            m_log.warn("No STUN server", e);
+            return null;
+        }
+    }
+
+    public InetSocketAddress getRelayAddress() {
+        // We don't support relays at this time.
+        m_log.warn("Attempted to get a relay!!");
+        return null;
+    }
+
+    public boolean hostPortMapped() {
+        // We don't map ports for clients (only for classes that also accept
+        // incoming connections).
+        return false;
+    }
+
+    public void addIoServiceListener(final IoServiceListener serviceListener) {
+        // There's no MINA service underneath us to report on.
+        m_log.debug("Ignoring service listener for raw client");
+    }
+}
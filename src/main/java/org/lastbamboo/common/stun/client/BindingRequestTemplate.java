@@ -0,0 +1,143 @@
+package org.lastbamboo.common.stun.client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Pre-encoded binding request.  Apart from the transaction ID, every
+ * binding request we send for server reflexive discovery, keepalives and
+ * probing is byte for byte the same, so we encode the header and any fixed
+ * attributes once and then just patch in the transaction ID -- and the
+ * FINGERPRINT CRC if we're using one -- each time we send.
+ */
+public final class BindingRequestTemplate {
+
+    /**
+     * Template for a bare binding request without any attributes.
+     */
+    public static final BindingRequestTemplate PLAIN =
+        new BindingRequestTemplate(null, false);
+
+    private static final int SOFTWARE = 0x8022;
+
+    private static final int FINGERPRINT = 0x8028;
+
+    /**
+     * XORed with the CRC for FINGERPRINT, from RFC 5389 section 15.5.
+     */
+    private static final int FINGERPRINT_XOR = 0x5354554E;
+
+    private static final int FINGERPRINT_LENGTH = 8;
+
+    private static final int TRANSACTION_ID_OFFSET = 4;
+
+    private static final int TRANSACTION_ID_LENGTH = 16;
+
+    private final byte[] m_template;
+
+    private final boolean m_fingerprint;
+
+    /**
+     * Scratch copies of the template for patching in the CRC.  We only
+     * need these with FINGERPRINT.
+     */
+    private final ThreadLocal<byte[]> m_scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return m_template.clone();
+        }
+    };
+
+    private static final ThreadLocal<CRC32> CRCS = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    /**
+     * Creates a new template.
+     *
+     * @param software The value for the SOFTWARE attribute, or
+     * <code>null</code> not to include one.
+     * @param fingerprint Whether or not to end requests with a FINGERPRINT
+     * attribute.
+     */
+    public BindingRequestTemplate(final String software,
+        final boolean fingerprint) {
+        final byte[] softwareBytes = software == null ?
+            null : software.getBytes(Charset.forName("UTF-8"));
+        int bodyLength = 0;
+        if (softwareBytes != null) {
+            // Attributes are padded to 4 byte boundaries.
+            bodyLength += 4 + ((softwareBytes.length + 3) & ~3);
+        }
+        if (fingerprint) {
+            bodyLength += FINGERPRINT_LENGTH;
+        }
+        final ByteBuffer buf =
+            ByteBuffer.allocate(StunWire.HEADER_LENGTH + bodyLength);
+        buf.putShort((short) StunWire.BINDING_REQUEST);
+        buf.putShort((short) bodyLength);
+
+        // Placeholder for the transaction ID.
+        buf.position(StunWire.HEADER_LENGTH);
+        if (softwareBytes != null) {
+            buf.putShort((short) SOFTWARE);
+            buf.putShort((short) softwareBytes.length);
+            buf.put(softwareBytes);
+            buf.position((buf.position() + 3) & ~3);
+        }
+        if (fingerprint) {
+            // Placeholder for the CRC too.
+            buf.putShort((short) FINGERPRINT);
+            buf.putShort((short) 4);
+        }
+        this.m_template = buf.array();
+        this.m_fingerprint = fingerprint;
+    }
+
+    /**
+     * Accessor for the length of encoded requests.
+     *
+     * @return The length of encoded requests.
+     */
+    public int getLength() {
+        return m_template.length;
+    }
+
+    /**
+     * Encodes a request with the specified transaction ID at the buffer's
+     * position.
+     *
+     * @param buf The buffer to encode into.
+     * @param transactionId The 16 byte transaction ID, including the magic
+     * cookie.
+     */
+    public void encode(final ByteBuffer buf, final byte[] transactionId) {
+        if (!m_fingerprint) {
+            final int start = buf.position();
+            buf.put(m_template);
+            for (int i = 0; i < TRANSACTION_ID_LENGTH; i++) {
+                buf.put(start + TRANSACTION_ID_OFFSET + i, transactionId[i]);
+            }
+            return;
+        }
+        final byte[] scratch = m_scratch.get();
+        System.arraycopy(transactionId, 0, scratch, TRANSACTION_ID_OFFSET,
+            TRANSACTION_ID_LENGTH);
+
+        // The CRC covers everything up to the FINGERPRINT attribute itself.
+        final int crcOffset = scratch.length - FINGERPRINT_LENGTH;
+        final CRC32 crc = CRCS.get();
+        crc.reset();
+        crc.update(scratch, 0, crcOffset);
+        final int fingerprint = (int) crc.getValue() ^ FINGERPRINT_XOR;
+        scratch[crcOffset + 4] = (byte) (fingerprint >>> 24);
+        scratch[crcOffset + 5] = (byte) (fingerprint >>> 16);
+        scratch[crcOffset + 6] = (byte) (fingerprint >>> 8);
+        scratch[crcOffset + 7] = (byte) fingerprint;
+        buf.put(scratch);
+    }
+}
@@ -0,0 +1,65 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.mina.common.ByteBuffer;
+import org.littleshoot.mina.common.IoFilterAdapter;
+import org.littleshoot.mina.common.IoSession;
+
+/**
+ * Filter that sits in front of the STUN codec and deals with binding 
+ * responses itself using a {@link BindingResponseView}.  Duplicate
+ * responses for transactions that have already completed are dropped 
+ * without being decoded at all, and responses we're waiting for complete
+ * their transactions straight from the raw bytes through the session's
+ * {@link RawResponseHandler}, so they never reach the codec or the 
+ * handler.  Everything else goes on to the codec as usual.  This only 
+ * applies to sessions that have their client's handler set as the 
+ * {@link #RESPONSE_HANDLER} attribute.
+ */
+final class BindingResponseFilter extends IoFilterAdapter {
+
+    /**
+     * The session attribute holding the handler for responses to the
+     * transactions outstanding on the session.
+     */
+    static final String RESPONSE_HANDLER = 
+        BindingResponseFilter.class.getName() + ".responseHandler";
+
+    private static final ThreadLocal<BindingResponseView> VIEWS = 
+        new ThreadLocal<BindingResponseView>() {
+        @Override
+        protected BindingResponseView initialValue() {
+            return new BindingResponseView();
+        }
+    };
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter, 
+        final IoSession session, final Object message) throws Exception {
+        final RawResponseHandler handler = 
+            (RawResponseHandler) session.getAttribute(RESPONSE_HANDLER);
+        if (handler == null || !(message instanceof ByteBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        final ByteBuffer buf = (ByteBuffer) message;
+        final BindingResponseView view = VIEWS.get().wrap(buf.buf());
+        try {
+            if (!view.isBindingResponse()) {
+                nextFilter.messageReceived(session, message);
+                return;
+            }
+
+            // The handler copies out everything it needs, and drops 
+            // duplicate responses after the transaction completes, which
+            // will happen fairly frequently with UDP because messages are
+            // retransmitted.
+            handler.onResponse(view, 
+                (InetSocketAddress) session.getRemoteAddress());
+            buf.release();
+        } finally {
+            view.clear();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a binding response sitting in a receive buffer.  All
+ * the srflx path needs from a response is its transaction ID and its 
+ * mapped address, so rather than materializing message and attribute 
+ * objects for every datagram -- most of which are duplicate responses to
+ * retransmissions -- we read just those fields straight from the buffer.
+ * A view is reused for datagram after datagram, so it's only valid until 
+ * the next call to {@link #wrap(ByteBuffer)} and is not thread safe.
+ */
+final class BindingResponseView {
+
+    private ByteBuffer m_datagram;
+
+    /**
+     * Points the view at a new datagram.
+     * 
+     * @param datagram The datagram, from its position to its limit.
+     * @return This view.
+     */
+    BindingResponseView wrap(final ByteBuffer datagram) {
+        // We read at absolute positions from the start of the message, so
+        // only slice in the rare case the message doesn't start at 0.
+        this.m_datagram = 
+            datagram.position() == 0 ? datagram : datagram.slice();
+        return this;
+    }
+
+    /**
+     * Drops our reference to the last datagram so pooled buffers don't 
+     * stay reachable through the view.
+     */
+    void clear() {
+        this.m_datagram = null;
+    }
+
+    /**
+     * Whether this is a binding success or binding error response.
+     * 
+     * @return <code>true</code> if this is a binding response.
+     */
+    boolean isBindingResponse() {
+        final int type = StunWire.getType(m_datagram);
+        return type == StunWire.BINDING_SUCCESS_RESPONSE || 
+            type == StunWire.BINDING_ERROR_RESPONSE;
+    }
+
+    /**
+     * Whether this is a binding success response.
+     * 
+     * @return <code>true</code> if this is a binding success response.
+     */
+    boolean isSuccess() {
+        return StunWire.getType(m_datagram) == 
+            StunWire.BINDING_SUCCESS_RESPONSE;
+    }
+
+    /**
+     * Looks up the transaction this response is for.
+     * 
+     * @param transactions The outstanding transactions.
+     * @return The transaction, or <code>null</code> if it's not 
+     * outstanding, typically because this is a duplicate response to a 
+     * retransmission.
+     */
+    StunClientTransaction findTransaction(final TransactionTable transactions) {
+        final StunClientTransaction tx = transactions.get(
+            StunWire.getTransactionHighBits(m_datagram),
+            StunWire.getTransactionLowBits(m_datagram));
+        if (tx == null || StunWire.getCookie(m_datagram) != tx.getCookie()) {
+            return null;
+        }
+        return tx;
+    }
+
+    /**
+     * Reads the mapped address, preferring XOR-MAPPED-ADDRESS.
+     * 
+     * @return The mapped address, or <code>null</code> if there isn't one.
+     */
+    InetSocketAddress getMappedAddress() {
+        return StunWire.readMappedAddress(m_datagram);
+    }
+
+    /**
+     * Reads the error code of a binding error response.
+     * 
+     * @return The error code, or -1 if there isn't one.
+     */
+    int getErrorCode() {
+        return StunWire.readErrorCode(m_datagram);
+    }
+}
@@ -0,0 +1,74 @@
+package org.lastbamboo.common.stun.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small pool of fixed-size direct buffers for a single transport.  Direct
+ * buffers are expensive to allocate and free, so we keep a handful around
+ * and hand them out for each packet.  The pool is a plain array stack 
+ * rather than a concurrent queue so that acquiring and releasing a buffer
+ * never allocates.
+ */
+final class DirectBufferPool {
+
+    private final int m_bufferSize;
+
+    private final ByteBuffer[] m_buffers;
+
+    private int m_size;
+
+    /**
+     * Creates a new pool.
+     * 
+     * @param bufferSize The capacity of each buffer.
+     * @param maxPooled The maximum number of idle buffers to keep.
+     */
+    DirectBufferPool(final int bufferSize, final int maxPooled) {
+        this.m_bufferSize = bufferSize;
+        this.m_buffers = new ByteBuffer[maxPooled];
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the
+     * pool is empty.
+     * 
+     * @return The buffer.
+     */
+    ByteBuffer acquire() {
+        synchronized (this) {
+            if (m_size > 0) {
+                final ByteBuffer buf = m_buffers[--m_size];
+                m_buffers[m_size] = null;
+                buf.clear();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(m_bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool.  If the pool is already full the buffer
+     * is just left for the garbage collector.
+     * 
+     * @param buf The buffer.
+     */
+    void release(final ByteBuffer buf) {
+        if (buf.capacity() != m_bufferSize || !buf.isDirect()) {
+            return;
+        }
+        synchronized (this) {
+            if (m_size < m_buffers.length) {
+                m_buffers[m_size++] = buf;
+            }
+        }
+    }
+
+    /**
+     * Accessor for the number of idle buffers in the pool.
+     * 
+     * @return The number of idle buffers.
+     */
+    synchronized int getIdle() {
+        return m_size;
+    }
+}
@@ -0,0 +1,253 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timer wheel for scheduling large numbers of short, cheap timeouts
+ * such as STUN retransmissions.  Scheduling and cancelling are O(1), and a
+ * single daemon thread expires timeouts with a resolution of one tick.
+ * Tasks run on the timer thread, so they must never block.
+ */
+public class HashedTimerWheel {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(HashedTimerWheel.class);
+
+    /**
+     * A task to run when a timeout expires.
+     */
+    public interface TimerTask {
+
+        /**
+         * Called on the timer thread when the timeout expires.
+         *
+         * @param timeout The expired timeout.
+         */
+        void run(Timeout timeout);
+    }
+
+    /**
+     * Handle for a scheduled task.
+     */
+    public interface Timeout {
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return <code>true</code> if the timeout was cancelled before it
+         * expired, otherwise <code>false</code>.
+         */
+        boolean cancel();
+
+        /**
+         * Whether or not the timeout was cancelled.
+         *
+         * @return <code>true</code> if the timeout was cancelled.
+         */
+        boolean isCancelled();
+    }
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final long m_tickMillis;
+
+    private final int m_mask;
+
+    private final List<WheelTimeout>[] m_wheel;
+
+    private final Queue<WheelTimeout> m_newTimeouts =
+        new ConcurrentLinkedQueue<WheelTimeout>();
+
+    private final AtomicInteger m_pending = new AtomicInteger();
+
+    private final String m_name;
+
+    private volatile Thread m_thread;
+
+    private long m_startTime;
+
+    private long m_tick;
+
+    /**
+     * Creates a new timer wheel.
+     *
+     * @param tickMillis The duration of each tick, in milliseconds.
+     * @param ticksPerWheel The number of buckets in the wheel.  This is
+     * rounded up to a power of two.
+     * @param name The name of the timer thread.
+     */
+    @SuppressWarnings("unchecked")
+    public HashedTimerWheel(final long tickMillis, final int ticksPerWheel,
+        final String name) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Bad tick: " + tickMillis);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.m_tickMillis = tickMillis;
+        this.m_mask = size - 1;
+        this.m_wheel = new List[size];
+        for (int i = 0; i < size; i++) {
+            this.m_wheel[i] = new ArrayList<WheelTimeout>();
+        }
+        this.m_name = name;
+    }
+
+    /**
+     * Schedules the specified task to run after the specified delay.
+     *
+     * @param task The task to run.
+     * @param delay The delay.
+     * @param unit The unit of the delay.
+     * @return The handle for the new timeout.
+     */
+    public Timeout schedule(final TimerTask task, final long delay,
+        final TimeUnit unit) {
+        start();
+        final long deadline = System.nanoTime() + unit.toNanos(delay);
+        final WheelTimeout timeout = new WheelTimeout(task, deadline);
+        m_pending.incrementAndGet();
+        m_newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Accessor for the number of timeouts that have been scheduled but that
+     * have not yet expired or been cancelled.
+     *
+     * @return The number of pending timeouts.
+     */
+    public int getPendingTimeouts() {
+        return m_pending.get();
+    }
+
+    private void start() {
+        if (m_thread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (m_thread != null) {
+                return;
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWheel();
+                }
+            }, m_name);
+            thread.setDaemon(true);
+            m_startTime = System.nanoTime();
+            m_thread = thread;
+            thread.start();
+        }
+    }
+
+    private void runWheel() {
+        final long tickNanos = TimeUnit.MILLISECONDS.toNanos(m_tickMillis);
+        while (true) {
+            final long deadline = m_startTime + (m_tick + 1) * tickNanos;
+            final long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (final InterruptedException e) {
+                    LOG.info("Timer thread interrupted", e);
+                }
+                continue;
+            }
+            transferNewTimeouts(tickNanos);
+            expire(m_wheel[(int) (m_tick & m_mask)], deadline);
+            m_tick++;
+        }
+    }
+
+    private void transferNewTimeouts(final long tickNanos) {
+        WheelTimeout timeout;
+        while ((timeout = m_newTimeouts.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            final long ticks = Math.max(m_tick,
+                (timeout.m_deadline - m_startTime) / tickNanos);
+            timeout.m_rounds = (ticks - m_tick) / m_wheel.length;
+            m_wheel[(int) (ticks & m_mask)].add(timeout);
+        }
+    }
+
+    private void expire(final List<WheelTimeout> bucket, final long deadline) {
+        int i = 0;
+        while (i < bucket.size()) {
+            final WheelTimeout timeout = bucket.get(i);
+            if (timeout.isCancelled()) {
+                removeAt(bucket, i);
+            } else if (timeout.m_rounds <= 0 &&
+                timeout.m_deadline <= deadline) {
+                removeAt(bucket, i);
+                timeout.expire();
+            } else {
+                timeout.m_rounds--;
+                i++;
+            }
+        }
+    }
+
+    private static void removeAt(final List<WheelTimeout> bucket,
+        final int index) {
+        // Order doesn't matter within a bucket, so just swap in the last
+        // element to avoid shifting.
+        final int last = bucket.size() - 1;
+        bucket.set(index, bucket.get(last));
+        bucket.remove(last);
+    }
+
+    private final class WheelTimeout implements Timeout {
+
+        private final TimerTask m_task;
+        private final long m_deadline;
+        private final AtomicInteger m_state = new AtomicInteger(ST_INIT);
+        private long m_rounds;
+
+        private WheelTimeout(final TimerTask task, final long deadline) {
+            this.m_task = task;
+            this.m_deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (m_state.compareAndSet(ST_INIT, ST_CANCELLED)) {
+                m_pending.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return m_state.get() == ST_CANCELLED;
+        }
+
+        private void expire() {
+            if (!m_state.compareAndSet(ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            m_pending.decrementAndGet();
+            try {
+                m_task.run(this);
+            } catch (final Throwable t) {
+                LOG.warn("Timer task threw an exception", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
+
+/**
+ * Interface for classes that want to hear about ICMP errors such as port 
+ * unreachable or host unreachable as soon as they arrive.  These errors 
+ * don't carry a STUN transaction ID, so they're reported by the remote 
+ * address of the session they arrived on.
+ */
+public interface IcmpErrorListener {
+
+    /**
+     * Called when we receive an ICMP error for a remote address.
+     * 
+     * @param remoteAddress The remote address of the session the error
+     * arrived on.
+     * @param error The error message.
+     */
+    void onIcmpError(InetSocketAddress remoteAddress, 
+        ConnectErrorStunMessage error);
+}
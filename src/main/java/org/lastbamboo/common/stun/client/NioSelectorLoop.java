@@ -0,0 +1,237 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread shared by all raw NIO STUN clients in the
+ * process.  Datagrams are read into one reused direct buffer and handed
+ * straight to the channel's handler on the selector thread, so handlers
+ * must be quick and must not hang on to the buffer.  Stream channels do
+ * their own reading and writing when the selector tells them they're
+ * ready.
+ */
+final class NioSelectorLoop implements Runnable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(NioSelectorLoop.class);
+
+    /**
+     * Larger than any STUN response we'd ever expect over UDP.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 2048;
+
+    private static NioSelectorLoop instance;
+
+    /**
+     * Callback for datagrams arriving on a registered channel.
+     */
+    interface DatagramHandler {
+
+        /**
+         * Called on the selector thread for each datagram.
+         *
+         * @param datagram The datagram, from position 0 to the limit.  This
+         * is only valid for the duration of the call.
+         * @param source The address the datagram came from.
+         */
+        void onDatagram(ByteBuffer datagram, InetSocketAddress source);
+    }
+
+    /**
+     * Callback for readiness of a registered stream channel.
+     */
+    interface StreamHandler {
+
+        /**
+         * Called on the selector thread when the channel is ready for any
+         * of the operations it's interested in.
+         *
+         * @param key The channel's selection key.
+         */
+        void onReady(SelectionKey key);
+    }
+
+    private final Selector m_selector;
+
+    private final Queue<Runnable> m_pending =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    private final ByteBuffer m_receiveBuffer =
+        ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+
+    private NioSelectorLoop() throws IOException {
+        this.m_selector = Selector.open();
+        final Thread thread = new Thread(this, "STUN-NIO-Selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the shared loop, starting it the first time through.
+     *
+     * @return The shared loop.
+     * @throws IOException If we can't open the selector.
+     */
+    static synchronized NioSelectorLoop getInstance() throws IOException {
+        if (instance == null) {
+            instance = new NioSelectorLoop();
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a non-blocking channel for reads.  The registration itself
+     * happens on the selector thread, but nothing is lost in the meantime
+     * since datagrams just queue up in the socket's receive buffer.
+     *
+     * @param channel The channel.
+     * @param handler The handler for datagrams arriving on the channel.
+     */
+    void register(final DatagramChannel channel,
+        final DatagramHandler handler) {
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(m_selector, SelectionKey.OP_READ,
+                        handler);
+                } catch (final ClosedChannelException e) {
+                    LOG.debug("Channel closed before registration");
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers a non-blocking stream channel.
+     *
+     * @param channel The channel.
+     * @param ops The operations we're interested in, as in
+     * {@link SelectionKey#interestOps(int)}.
+     * @param handler The handler for the channel's readiness events.
+     */
+    void register(final SocketChannel channel, final int ops,
+        final StreamHandler handler) {
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.register(m_selector, ops, handler);
+                } catch (final ClosedChannelException e) {
+                    LOG.debug("Channel closed before registration");
+                }
+            }
+        });
+    }
+
+    /**
+     * Changes the operations a registered channel is interested in.
+     *
+     * @param channel The channel.
+     * @param ops The operations, as in {@link SelectionKey#interestOps(int)}.
+     */
+    void setInterest(final SelectableChannel channel, final int ops) {
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                final SelectionKey key = channel.keyFor(m_selector);
+                if (key != null && key.isValid()) {
+                    key.interestOps(ops);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unregisters a channel.  Closing the channel unregisters it too, but
+     * the key only actually goes away on the next select.
+     *
+     * @param channel The channel.
+     */
+    void unregister(final SelectableChannel channel) {
+        runOnSelector(new Runnable() {
+            @Override
+            public void run() {
+                final SelectionKey key = channel.keyFor(m_selector);
+                if (key != null) {
+                    key.cancel();
+                }
+            }
+        });
+    }
+
+    private void runOnSelector(final Runnable task) {
+        this.m_pending.add(task);
+        this.m_selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                this.m_selector.select();
+                Runnable task;
+                while ((task = this.m_pending.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys =
+                    this.m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.attachment() instanceof StreamHandler) {
+                        ((StreamHandler) key.attachment()).onReady(key);
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+            } catch (final Throwable t) {
+                // Never let one bad channel or handler kill the thread
+                // everyone shares.
+                LOG.warn("Error on selector thread", t);
+            }
+        }
+    }
+
+    private void read(final SelectionKey key) {
+        final DatagramChannel channel = (DatagramChannel) key.channel();
+        final DatagramHandler handler = (DatagramHandler) key.attachment();
+
+        // Drain everything that's arrived so a burst of responses only
+        // costs us one select.
+        while (true) {
+            this.m_receiveBuffer.clear();
+            final InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) channel.receive(
+                    this.m_receiveBuffer);
+            } catch (final IOException e) {
+                // Typically an ICMP error surfacing on the channel.
+                LOG.debug("Error reading from channel", e);
+                return;
+            }
+            if (source == null) {
+                return;
+            }
+            this.m_receiveBuffer.flip();
+            handler.onDatagram(this.m_receiveBuffer, source);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * UDP STUN client that talks to servers over a plain NIO
+ * {@link DatagramChannel} rather than through MINA.  Binding requests are
+ * encoded straight into pooled direct buffers, and responses are matched to
+ * their transactions from the raw bytes on the shared selector thread
+ * without going through a filter chain, a codec or a thread pool.
+ */
+public class NioStunClient extends AbstractRawStunClient
+    implements NioSelectorLoop.DatagramHandler {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(NioStunClient.class);
+
+    /**
+     * The largest request we'll send -- the minimum IPv4 MTU less the IP
+     * and UDP headers.
+     */
+    private static final int MAX_REQUEST_SIZE = 548;
+
+    /**
+     * Send buffers.  Requests go out from both the caller's thread and the
+     * retransmission timer, so we pool buffers rather than sharing one.
+     */
+    private final DirectBufferPool m_sendBuffers = new DirectBufferPool(
+        Math.max(MAX_REQUEST_SIZE, m_template.getLength()), 8);
+
+    private final Object m_channelLock = new Object();
+
+    private DatagramChannel m_channel;
+
+    private volatile InetSocketAddress m_localAddress;
+
+    /**
+     * View for reading responses.  This is only ever used on the selector
+     * thread.
+     */
+    private final BindingResponseView m_view = new BindingResponseView();
+
+    /**
+     * Creates a new STUN client that connects to the specified STUN servers.
+     *
+     * @param stunServerCandidateProvider Class that provides STUN servers to
+     * use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public NioStunClient(
+        final CandidateProvider<InetSocketAddress> stunServerCandidateProvider)
+            throws IOException {
+        this(null, stunServerCandidateProvider.getCandidates());
+    }
+
+    /**
+     * Creates a new STUN client that connects to the specified STUN servers.
+     *
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public NioStunClient(final InetSocketAddress... stunServers)
+        throws IOException {
+        this(null, Arrays.asList(stunServers));
+    }
+
+    /**
+     * Creates a new STUN client that connects to the specified STUN servers.
+     *
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public NioStunClient(final Collection<InetSocketAddress> stunServers)
+        throws IOException {
+        this(null, stunServers);
+    }
+
+    /**
+     * Creates a new STUN client bound to the specified local address.
+     *
+     * @param localAddress The local address to bind to, or
+     * <code>null</code> for an ephemeral port on all interfaces.
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public NioStunClient(final InetSocketAddress localAddress,
+        final Collection<InetSocketAddress> stunServers) throws IOException {
+        super(localAddress, stunServers);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        openChannel();
+    }
+
+    /**
+     * Returns our channel, opening it and registering it with the shared
+     * selector the first time through.
+     */
+    private DatagramChannel openChannel() throws IOException {
+        synchronized (this.m_channelLock) {
+            if (this.m_channel != null) {
+                return this.m_channel;
+            }
+            final DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setReuseAddress(true);
+                channel.socket().bind(this.m_originalLocalAddress);
+            } catch (final IOException e) {
+                channel.close();
+                throw e;
+            }
+            NioSelectorLoop.getInstance().register(channel, this);
+            this.m_localAddress =
+                (InetSocketAddress) channel.socket().getLocalSocketAddress();
+            LOG.debug("Bound NIO STUN channel to: {}", this.m_localAddress);
+            this.m_channel = channel;
+            return channel;
+        }
+    }
+
+    @Override
+    public void onDatagram(final ByteBuffer datagram,
+        final InetSocketAddress source) {
+        final BindingResponseView view = this.m_view.wrap(datagram);
+        try {
+            this.m_responseHandler.onResponse(view, source);
+        } finally {
+            view.clear();
+        }
+    }
+
+    /**
+     * Registers transactions for all the specified requests and starts
+     * sending them on a single retransmission schedule.
+     */
+    @Override
+    List<StunClientTransaction> startTransactions(
+        final Collection<BindingRequest> requests,
+        final InetSocketAddress remoteAddress, final long rto)
+        throws IOException {
+        final DatagramChannel channel = openChannel();
+        final List<StunClientTransaction> txs =
+            newTransactions(requests, remoteAddress);
+        new RetransmissionSchedule(new RequestSender() {
+            @Override
+            public void send(final StunClientTransaction tx) {
+                sendRequest(channel, tx, remoteAddress);
+            }
+        }, txs, rto).start();
+        return txs;
+    }
+
+    private void sendRequest(final DatagramChannel channel,
+        final StunClientTransaction tx, final InetSocketAddress remoteAddress) {
+        final ByteBuffer buf = this.m_sendBuffers.acquire();
+        this.m_template.encode(buf, tx.getTransactionId());
+        buf.flip();
+        try {
+            if (channel.send(buf, remoteAddress) == 0) {
+                // The socket's send buffer is full.  This is no different
+                // from the datagram getting lost on the way, so just let
+                // the retransmissions take care of it.
+                LOG.debug("Send buffer full sending to {}", remoteAddress);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Error sending to: " + remoteAddress, e);
+        } finally {
+            this.m_sendBuffers.release(buf);
+        }
+    }
+
+    public InetSocketAddress getHostAddress() {
+        return this.m_localAddress;
+    }
+
+    public void close() {
+        final DatagramChannel channel;
+        synchronized (this.m_channelLock) {
+            channel = this.m_channel;
+            this.m_channel = null;
+        }
+        if (channel != null) {
+            LOG.info("Closing channel bound to: {}", this.m_localAddress);
+            try {
+                NioSelectorLoop.getInstance().unregister(channel);
+                channel.close();
+            } catch (final IOException e) {
+                LOG.warn("Error closing channel", e);
+            }
+        }
+        abandonTransactions();
+    }
+}
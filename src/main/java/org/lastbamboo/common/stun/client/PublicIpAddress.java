@@ -6,6 +6,7 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -45,6 +46,16 @@ public class PublicIpAddress implements PublicIp {
     private static InetAddress publicIp;
     private static long lastLookupTime;
     
+    /**
+     * Shared by all TCP lookups so we keep our connection to the server.
+     */
+    private static TcpStunClient tcpStunClient;
+
+    /**
+     * How long a TCP lookup gets in all, in milliseconds.
+     */
+    private static final long TCP_LOOKUP_TIMEOUT = 12 * 1000;
+    
     private final long cacheTime;
 
     private static final ExecutorService threadPool = 
@@ -93,6 +104,21 @@ public class PublicIpAddress implements PublicIp {
         } catch (final TimeoutException e) {
             LOG.error("Could not perform STUN lookup", e);
         }
+        
+        // UDP may well be blocked, so try STUN over TCP before falling all
+        // the way back to HTTP.
+        try {
+            publicIp = tcpStunLookup();
+            return publicIp;
+        } catch (final InterruptedException e) {
+            LOG.error("Could not perform TCP STUN lookup", e);
+        } catch (final ExecutionException e) {
+            LOG.error("Could not perform TCP STUN lookup", e);
+        } catch (final TimeoutException e) {
+            LOG.error("Could not perform TCP STUN lookup", e);
+        } catch (final IOException e) {
+            LOG.error("Could not perform TCP STUN lookup", e);
+        }
 
         publicIp = wikiMediaLookup();
         if (publicIp != null) {
@@ -129,6 +155,48 @@ public class PublicIpAddress implements PublicIp {
         return threadPool.invokeAny(tasks, 12, TimeUnit.SECONDS);
     }
 
+    /**
+     * Asks one server at a time over TCP, failing over to the next when a
+     * server doesn't answer.  Opening a connection to every server at once
+     * costs each of them a handshake for an answer we only need once.  Each
+     * server gets an equal share of the budget, so a dead server can't use
+     * it all up before we get to the next one.
+     */
+    private InetAddress tcpStunLookup() throws InterruptedException, 
+        ExecutionException, TimeoutException, IOException {
+        final TcpStunClient client = tcpStunClient();
+        final CompletableFuture<InetSocketAddress> future = 
+            client.getServerReflexiveAddressAsync(
+                Math.max(1L, TCP_LOOKUP_TIMEOUT / client.getServerCount()));
+        try {
+            publicIp = future.get(TCP_LOOKUP_TIMEOUT, 
+                TimeUnit.MILLISECONDS).getAddress();
+        } catch (final TimeoutException e) {
+            future.cancel(false);
+            throw e;
+        }
+        lastLookupTime = System.currentTimeMillis();
+        return publicIp;
+    }
+
+    /**
+     * Returns the shared TCP client.  Creating it never waits on DNS -- 
+     * servers resolve in the background, and the time that takes comes out
+     * of the lookup's budget.
+     */
+    private static synchronized TcpStunClient tcpStunClient() 
+        throws IOException {
+        if (tcpStunClient == null) {
+            final Collection<InetSocketAddress> servers = 
+                StunServerRepository.getServers();
+            synchronized (servers) {
+                tcpStunClient = new TcpStunClient(
+                    new ArrayList<InetSocketAddress>(servers));
+            }
+        }
+        return tcpStunClient;
+    }
+
     private static InetAddress ifConfigLookup() {
         final HttpClient client = new HttpClient();
         final GetMethod get = new GetMethod("http://ifconfig.me");
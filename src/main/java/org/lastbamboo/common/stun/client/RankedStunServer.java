@@ -0,0 +1,471 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.littleshoot.stun.stack.message.BindingErrorResponse;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * A STUN server along with what we've learned about how quickly and how
+ * reliably it answers.  We keep exponentially weighted moving averages of
+ * the server's round-trip time, of how often transactions with it fail
+ * and of how many retransmissions successful transactions need, and
+ * combine them into the expected cost of asking the server for a binding.
+ * What we've learned fades the longer it's been since we last heard from
+ * the server, so servers that were bad a while ago get another chance and
+ * servers that were good a while ago have to prove themselves again.
+ * <p>
+ * Each server also has a circuit breaker.  After a few failures in a row,
+ * or an ICMP error, the breaker opens and we skip the server entirely
+ * rather than paying for another timeout.  Once the breaker's backoff
+ * expires a single probe decides whether to close it again or to back off
+ * for twice as long.
+ * <p>
+ * This class is thread safe and never blocks.
+ */
+final class RankedStunServer {
+
+    /**
+     * The gain for round-trip times, the same as for the SRTT in RFC 2988.
+     */
+    private static final double RTT_ALPHA = 1.0 / 8.0;
+
+    /**
+     * The gain for loss and retransmissions.  We react to these a little
+     * faster than to round-trip times since a server that's gone away
+     * costs far more than a slow one.
+     */
+    private static final double LOSS_ALPHA = 1.0 / 4.0;
+
+    /**
+     * The round-trip time we assume for servers we don't know anything
+     * about, the same as the default RTO.
+     */
+    private static final double PRIOR_RTT = RttEstimator.DEFAULT_RTO;
+
+    /**
+     * How long it takes what we know about a server to fade halfway back
+     * to what we assume about servers we've never heard from.  This
+     * matches how long RFC 5389 says cached RTOs stay fresh.
+     */
+    private static final long HALF_LIFE = 10 * 60 * 1000L;
+
+    /**
+     * The number of failures in a row that opens the breaker.
+     */
+    private static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * How long the breaker stays open the first time it opens.
+     */
+    private static final long INITIAL_BACKOFF = 5 * 1000L;
+
+    /**
+     * The longest the breaker ever stays open before we probe again.
+     */
+    private static final long MAX_BACKOFF = 5 * 60 * 1000L;
+
+    private final InetSocketAddress m_address;
+
+    /**
+     * Everything we know about the server.  We never change a state in
+     * place but swap in a new one atomically, so many threads can record
+     * transactions and rank the server at once without locking, and every
+     * read sees one consistent state.
+     */
+    private final AtomicReference<State> m_state =
+        new AtomicReference<State>(State.UNKNOWN);
+
+    /**
+     * Creates a new server.  Resolving and verifying the address is up to
+     * {@link StunServerResolver}.
+     *
+     * @param address The server's address.
+     */
+    RankedStunServer(final InetSocketAddress address) {
+        this.m_address = address;
+    }
+
+    InetSocketAddress getAddress() {
+        return m_address;
+    }
+
+    /**
+     * Records the outcome of a transaction with this server.
+     *
+     * @param tx The transaction.
+     * @param response The response the transaction completed with.
+     * @param t The exception the transaction completed with, if any.
+     */
+    void onTransactionDone(final StunClientTransaction tx,
+        final StunMessage response, final Throwable t) {
+        if (t != null) {
+            // Cancelled, which says nothing about the server.
+            return;
+        }
+        if (response instanceof BindingSuccessResponse) {
+            onSuccess(tx.getRtt(), tx.getSends());
+        } else if (tx.isTimedOut() ||
+            response instanceof BindingErrorResponse ||
+            response instanceof ConnectErrorStunMessage) {
+            onFailure();
+        }
+        // Anything else we gave up on for our own reasons.
+    }
+
+    /**
+     * Records a successful transaction.
+     *
+     * @param rtt The transaction's round-trip time in milliseconds, or -1
+     * if we don't have a clean sample because it needed retransmissions.
+     * @param sends The number of times we sent the request.
+     */
+    void onSuccess(final long rtt, final int sends) {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            final State cur = m_state.get();
+            final double newRtt;
+            if (rtt < 0L) {
+                newRtt = cur.m_rtt;
+            } else {
+                newRtt = cur.m_rtt < 0.0 ?
+                    rtt : (1.0 - RTT_ALPHA) * cur.m_rtt + RTT_ALPHA * rtt;
+            }
+
+            // Any answer at all closes the breaker.
+            final State next = new State(newRtt,
+                (1.0 - LOSS_ALPHA) * cur.m_loss,
+                (1.0 - LOSS_ALPHA) * cur.m_retransmits +
+                    LOSS_ALPHA * Math.max(0, sends - 1),
+                now, 0, 0L, 0L, false);
+            if (m_state.compareAndSet(cur, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records a failed transaction, whether it timed out or the server
+     * told us it couldn't help.
+     */
+    void onFailure() {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            final State cur = m_state.get();
+            final int failures = cur.m_consecutiveFailures + 1;
+            long openUntil = cur.m_openUntil;
+            long backoff = cur.m_backoff;
+            boolean probing = cur.m_probing;
+            if (probing) {
+                probing = false;
+                backoff = nextBackoff(backoff);
+                openUntil = now + backoff;
+            } else if (openUntil == 0L && failures >= FAILURE_THRESHOLD) {
+                backoff = INITIAL_BACKOFF;
+                openUntil = now + backoff;
+            }
+            final State next = new State(cur.m_rtt,
+                (1.0 - LOSS_ALPHA) * cur.m_loss + LOSS_ALPHA,
+                cur.m_retransmits, now, failures, openUntil, backoff,
+                probing);
+            if (m_state.compareAndSet(cur, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that the probe we sent after the breaker's backoff expired
+     * didn't get an answer in time, so the breaker stays open for twice as
+     * long as last time.
+     */
+    void onProbeFailed() {
+        while (true) {
+            final State cur = m_state.get();
+            if (!cur.m_probing) {
+                return;
+            }
+            final long backoff = nextBackoff(cur.m_backoff);
+            final State next = cur.withBreaker(
+                System.currentTimeMillis() + backoff, backoff, false);
+            if (m_state.compareAndSet(cur, next)) {
+                return;
+            }
+        }
+    }
+
+    private static long nextBackoff(final long backoff) {
+        return Math.min(MAX_BACKOFF, Math.max(INITIAL_BACKOFF, backoff * 2));
+    }
+
+    /**
+     * Claims the single probe for the server if its breaker is open and
+     * its backoff has expired.  Until the probe completes nobody else gets
+     * to probe, and the server is still skipped.
+     *
+     * @return <code>true</code> if the caller should send a probe.
+     */
+    boolean tryStartProbe() {
+        while (true) {
+            final State cur = m_state.get();
+            if (cur.m_openUntil == 0L || cur.m_probing ||
+                System.currentTimeMillis() < cur.m_openUntil) {
+                return false;
+            }
+            final State next =
+                cur.withBreaker(cur.m_openUntil, cur.m_backoff, true);
+            if (m_state.compareAndSet(cur, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Opens the breaker for at least the specified period, typically
+     * because of an ICMP error.
+     *
+     * @param period How long to skip the server, in milliseconds.
+     */
+    void markDown(final long period) {
+        final long until = System.currentTimeMillis() + period;
+        while (true) {
+            final State cur = m_state.get();
+            if (until <= cur.m_openUntil) {
+                return;
+            }
+            final State next = cur.withBreaker(until,
+                Math.max(cur.m_backoff, period), cur.m_probing);
+            if (m_state.compareAndSet(cur, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether or not the breaker is open, in which case we skip the
+     * server.  The breaker stays open until an answer from the server
+     * closes it, even after its backoff expires.
+     *
+     * @return <code>true</code> if the breaker is open.
+     */
+    boolean isOpen() {
+        return m_state.get().m_openUntil != 0L;
+    }
+
+    /**
+     * Returns the expected cost of asking this server for a binding.  Each
+     * attempt either gets an answer after the round-trip time, plus
+     * roughly two round-trip times for each retransmission it needed, or
+     * fails and costs the caller {@link #failureCost()}.  Lower is better.
+     *
+     * @return The expected cost in milliseconds.
+     */
+    double getScore() {
+        final State state = m_state.get();
+        final double freshness = state.freshness();
+        final double loss = freshness * state.m_loss;
+        return (1.0 - loss) * state.rtt(freshness) *
+            (1.0 + 2.0 * freshness * state.m_retransmits) +
+            loss * failureCost();
+    }
+
+    /**
+     * What a transaction that fails costs the caller, which is the time it
+     * takes the retransmission schedule to give up on it with the default
+     * RTO.
+     *
+     * @return The cost in milliseconds.
+     */
+    private static double failureCost() {
+        return RetransmissionSchedule.getGiveUpTime(RttEstimator.DEFAULT_RTO);
+    }
+
+    /**
+     * Accessor for when we last heard how a transaction with the server
+     * went.
+     *
+     * @return The time in milliseconds since the epoch, or 0 if we never
+     * have.
+     */
+    long getLastUpdate() {
+        return m_state.get().m_lastUpdate;
+    }
+
+    /**
+     * Accessor for the smoothed round-trip time, faded towards our prior
+     * the longer it's been since we heard from the server.
+     *
+     * @return The round-trip time in milliseconds.
+     */
+    double getRtt() {
+        final State state = m_state.get();
+        return state.rtt(state.freshness());
+    }
+
+    /**
+     * Accessor for the smoothed fraction of transactions that fail.
+     *
+     * @return The loss rate, between 0 and 1.
+     */
+    double getLossRate() {
+        final State state = m_state.get();
+        return state.freshness() * state.m_loss;
+    }
+
+    /**
+     * Accessor for the smoothed number of retransmissions successful
+     * transactions need.
+     *
+     * @return The retransmissions per successful transaction.
+     */
+    double getRetransmitRatio() {
+        final State state = m_state.get();
+        return state.freshness() * state.m_retransmits;
+    }
+
+    /**
+     * Whether or not the server's address is of the specified family.
+     *
+     * @param family The family, or <code>null</code> for any family.
+     * @return <code>true</code> if the server belongs to the family.
+     */
+    boolean isFamily(final Class<? extends InetAddress> family) {
+        // Unresolved servers don't belong to any particular family.
+        return family == null || family.isInstance(m_address.getAddress());
+    }
+
+    /**
+     * Accessor for a snapshot of everything we know about the server, for
+     * saving it.
+     *
+     * @return The server's state.
+     */
+    State getState() {
+        return m_state.get();
+    }
+
+    /**
+     * Restores a saved state if we haven't learned anything about the
+     * server ourselves yet.  A probe that was in flight when we saved is
+     * forgotten, so the next pick probes again if the breaker's backoff
+     * has expired.
+     *
+     * @param state The saved state.
+     */
+    void restore(final State state) {
+        m_state.compareAndSet(State.UNKNOWN,
+            state.withBreaker(state.m_openUntil, state.m_backoff, false));
+    }
+
+    /**
+     * An immutable snapshot of what we know about a server.  All times are
+     * wall clock times, so they still mean the same thing after a restart.
+     */
+    static final class State {
+
+        private static final State UNKNOWN =
+            new State(-1.0, 0.0, 0.0, 0L, 0, 0L, 0L, false);
+
+        private final double m_rtt;
+
+        private final double m_loss;
+
+        private final double m_retransmits;
+
+        private final long m_lastUpdate;
+
+        private final int m_consecutiveFailures;
+
+        /**
+         * When the breaker's backoff expires, or 0 if the breaker is
+         * closed.
+         */
+        private final long m_openUntil;
+
+        private final long m_backoff;
+
+        private final boolean m_probing;
+
+        private State(final double rtt, final double loss,
+            final double retransmits, final long lastUpdate,
+            final int consecutiveFailures, final long openUntil,
+            final long backoff, final boolean probing) {
+            this.m_rtt = rtt;
+            this.m_loss = loss;
+            this.m_retransmits = retransmits;
+            this.m_lastUpdate = lastUpdate;
+            this.m_consecutiveFailures = consecutiveFailures;
+            this.m_openUntil = openUntil;
+            this.m_backoff = backoff;
+            this.m_probing = probing;
+        }
+
+        private State withBreaker(final long openUntil, final long backoff,
+            final boolean probing) {
+            return new State(m_rtt, m_loss, m_retransmits, m_lastUpdate,
+                m_consecutiveFailures, openUntil, backoff, probing);
+        }
+
+        /**
+         * Reads a state written with {@link #write(DataOutput)}.
+         *
+         * @param in The input to read from.
+         * @return The state.
+         * @throws IOException If we can't read the state.
+         */
+        static State read(final DataInput in) throws IOException {
+            return new State(in.readDouble(), in.readDouble(),
+                in.readDouble(), in.readLong(), in.readInt(), in.readLong(),
+                in.readLong(), false);
+        }
+
+        /**
+         * Writes the state in a compact binary form.
+         *
+         * @param out The output to write to.
+         * @throws IOException If we can't write the state.
+         */
+        void write(final DataOutput out) throws IOException {
+            out.writeDouble(m_rtt);
+            out.writeDouble(m_loss);
+            out.writeDouble(m_retransmits);
+            out.writeLong(m_lastUpdate);
+            out.writeInt(m_consecutiveFailures);
+            out.writeLong(m_openUntil);
+            out.writeLong(m_backoff);
+        }
+
+        private double rtt(final double freshness) {
+            if (m_rtt < 0.0) {
+                return PRIOR_RTT;
+            }
+            return PRIOR_RTT + freshness * (m_rtt - PRIOR_RTT);
+        }
+
+        /**
+         * Returns how much what we've learned still counts, from 1 right
+         * after we hear from the server, halving every
+         * {@link RankedStunServer#HALF_LIFE}.
+         */
+        private double freshness() {
+            if (m_lastUpdate == 0L) {
+                return 0.0;
+            }
+            final long age = System.currentTimeMillis() - m_lastUpdate;
+            return Math.pow(0.5, (double) Math.max(0L, age) / HALF_LIFE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RankedStunServer [isa=" + m_address + " score=" +
+            getScore() + " open=" + isOpen() + "]";
+    }
+}
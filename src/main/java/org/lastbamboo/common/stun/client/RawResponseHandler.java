@@ -0,0 +1,107 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+
+import org.littleshoot.stun.stack.message.BindingErrorResponse;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matches raw binding responses to outstanding transactions and completes
+ * them, for the transports that read responses straight off their own 
+ * channels rather than through MINA.
+ */
+final class RawResponseHandler {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(RawResponseHandler.class);
+
+    /**
+     * The error code we report for responses that are broken in a way the
+     * server didn't tell us about itself.
+     */
+    private static final int SERVER_ERROR = 500;
+
+    private final TransactionTable m_transactions;
+
+    private final Executor m_executor;
+
+    /**
+     * Creates a new handler.
+     * 
+     * @param transactions The outstanding transactions.
+     * @param executor Where to complete transactions, or <code>null</code> 
+     * to complete them on the thread that read the response.
+     */
+    RawResponseHandler(final TransactionTable transactions, 
+        final Executor executor) {
+        this.m_transactions = transactions;
+        this.m_executor = executor;
+    }
+
+    /**
+     * Handles a response.  Everything we need is copied out of the view 
+     * before this returns, so the caller can reuse the buffer underneath.
+     * 
+     * @param view The view of the response.
+     * @param source Where the response came from.
+     */
+    void onResponse(final BindingResponseView view,
+        final InetSocketAddress source) {
+        if (!view.isBindingResponse()) {
+            LOG.debug("Ignoring message from {}", source);
+            return;
+        }
+        final StunClientTransaction tx = 
+            view.findTransaction(this.m_transactions);
+        if (tx == null) {
+            // Most likely a duplicate response to a retransmission.
+            return;
+        }
+        if (!source.equals(tx.getRemoteAddress())) {
+            // Make sure the response came from the server we asked.
+            LOG.warn("Response from {} for transaction with {}", source,
+                tx.getRemoteAddress());
+            return;
+        }
+
+        // Take it out of the table ourselves rather than leaving it to the
+        // future's callbacks, so it's gone before anyone waiting on the
+        // future wakes up.
+        this.m_transactions.remove(tx);
+        final StunMessage response;
+        if (!view.isSuccess()) {
+            final int code = view.getErrorCode();
+            LOG.warn("Received Binding Error Response with code {} from {}",
+                code, source);
+            response = new BindingErrorResponse(tx.getTransactionId(),
+                code < 0 ? SERVER_ERROR : code, "Binding Error");
+        } else {
+            final InetSocketAddress mapped = view.getMappedAddress();
+            if (mapped == null) {
+                // The server answered but told us nothing useful, which we
+                // count against it just like an error response.
+                LOG.warn("No mapped address in response from {}", source);
+                response = new BindingErrorResponse(tx.getTransactionId(),
+                    SERVER_ERROR, "No mapped address");
+            } else {
+                response =
+                    new BindingSuccessResponse(tx.getTransactionId(), mapped);
+            }
+        }
+
+        if (this.m_executor == null) {
+            tx.complete(response);
+            return;
+        }
+        this.m_executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                tx.complete(response);
+            }
+        });
+    }
+}
@@ -0,0 +1,15 @@
+package org.lastbamboo.common.stun.client;
+
+/**
+ * Sends a single copy of a binding request.  This lets the same 
+ * retransmission logic drive any transport.
+ */
+interface RequestSender {
+
+    /**
+     * Sends the transaction's request once.
+     * 
+     * @param tx The transaction whose request to send.
+     */
+    void send(StunClientTransaction tx);
+}
@@ -0,0 +1,181 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Retransmission schedule for UDP binding requests, as described in
+ * draft-ietf-behave-rfc3489bis-06.txt section 7.1.  We continually send the
+ * same request until we receive a response, never sending more than 7
+ * requests and using an expanding interval between requests based on the
+ * estimated round-trip-time to the server.  However far the RTO has backed
+ * off, we give up after
+ * {@link StunClientConfig#getUdpTransactionTimeout()}.  Rather than parking
+ * a thread for each transaction, every schedule is just an entry on a
+ * shared {@link HashedTimerWheel}.
+ */
+final class RetransmissionSchedule implements HashedTimerWheel.TimerTask {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(RetransmissionSchedule.class);
+
+    /**
+     * The shared timer for all retransmissions in the process.
+     */
+    static final HashedTimerWheel TIMER =
+        new HashedTimerWheel(5L, 512, "STUN-Retransmission-Timer");
+
+    /**
+     * The maximum number of times we send a request, called Rc in RFC 5389.
+     */
+    static final int MAX_REQUESTS = 7;
+
+    /**
+     * The multiple of the RTO we wait after the last request before giving
+     * up, called Rm in RFC 5389.
+     */
+    static final long FINAL_WAIT_RTOS = 16L;
+
+    private final RequestSender m_sender;
+
+    private final Collection<StunClientTransaction> m_transactions;
+
+    private final long m_rto;
+
+    private final long m_timeLimit;
+
+    private int m_requests;
+
+    private long m_waitTime;
+
+    /**
+     * How long after the first send our current timer expires.
+     */
+    private long m_elapsed;
+
+    private volatile HashedTimerWheel.Timeout m_timeout;
+
+    private volatile boolean m_finished;
+
+    /**
+     * Creates a new schedule.  All transactions in the schedule share the
+     * same timer.
+     *
+     * @param sender The class that actually sends requests.
+     * @param transactions The transactions to retransmit.
+     * @param rto The RTO to use.
+     */
+    RetransmissionSchedule(final RequestSender sender,
+        final Collection<StunClientTransaction> transactions, final long rto) {
+        this.m_sender = sender;
+        this.m_transactions = transactions;
+        this.m_rto = rto;
+        this.m_timeLimit = StunClientConfig.getUdpTransactionTimeout();
+        for (final StunClientTransaction tx : transactions) {
+            tx.setSchedule(this);
+        }
+    }
+
+    /**
+     * Returns how long a schedule with the specified RTO takes to give up
+     * on a transaction that never gets an answer.
+     *
+     * @param rto The RTO.
+     * @return The time to give up in milliseconds.
+     */
+    static long getGiveUpTime(final long rto) {
+        long waitTime = 0L;
+        long elapsed = 0L;
+        for (int i = 1; i < MAX_REQUESTS; i++) {
+            waitTime = (2 * waitTime) + rto;
+            elapsed += waitTime;
+        }
+        elapsed += FINAL_WAIT_RTOS * rto;
+        return Math.min(elapsed, StunClientConfig.getUdpTransactionTimeout());
+    }
+
+    /**
+     * Sends the first requests and starts the timer.
+     */
+    void start() {
+        synchronized (this) {
+            sendAndSchedule();
+        }
+    }
+
+    @Override
+    public void run(final HashedTimerWheel.Timeout timeout) {
+        synchronized (this) {
+            if (m_finished) {
+                return;
+            }
+            if (m_requests < MAX_REQUESTS) {
+                sendAndSchedule();
+                return;
+            }
+            m_finished = true;
+        }
+
+        // If we get here the final wait after the last request expired, so
+        // everything still outstanding has failed.
+        for (final StunClientTransaction tx : m_transactions) {
+            if (!tx.isDone()) {
+                LOG.warn("Did not get response from: {}",
+                    tx.getRemoteAddress());
+                tx.complete(new NullStunMessage());
+            }
+        }
+    }
+
+    /**
+     * Called when any of our transactions completes.  Once they all have
+     * we cancel the timer so it doesn't linger on the wheel.
+     */
+    void onTransactionDone() {
+        for (final StunClientTransaction tx : m_transactions) {
+            if (!tx.isDone()) {
+                return;
+            }
+        }
+        m_finished = true;
+        final HashedTimerWheel.Timeout timeout = m_timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void sendAndSchedule() {
+        boolean sent = false;
+        for (final StunClientTransaction tx : m_transactions) {
+            if (!tx.isDone()) {
+                // Count the send first so a very fast response can't beat us.
+                tx.onSent();
+                m_sender.send(tx);
+                sent = true;
+            }
+        }
+        if (!sent) {
+            m_finished = true;
+            return;
+        }
+        m_requests++;
+
+        // Wait a little longer with each send, and for 16 RTOs after the
+        // last request was sent, or 1.6 seconds with the default RTO.
+        m_waitTime = (2 * m_waitTime) + m_rto;
+        long delay =
+            m_requests < MAX_REQUESTS ? m_waitTime : FINAL_WAIT_RTOS * m_rto;
+        final long remaining = m_timeLimit - m_elapsed;
+        if (delay >= remaining) {
+            // Out of time, so this becomes the final wait.
+            delay = Math.max(0L, remaining);
+            m_requests = MAX_REQUESTS;
+        }
+        m_elapsed += delay;
+        m_timeout = TIMER.schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+}
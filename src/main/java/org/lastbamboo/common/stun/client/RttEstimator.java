@@ -0,0 +1,270 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps smoothed round-trip time estimates for a single STUN server and
+ * derives the retransmission timeout (RTO) from them.  This follows the
+ * algorithm referenced in RFC 5389 section 7.2.1, which in turn uses the
+ * SRTT/RTTVAR calculation from RFC 2988.
+ */
+public class RttEstimator {
+
+    /**
+     * The RTO to use before we have any samples, as discussed in
+     * draft-ietf-behave-rfc3489bis-06.txt section 7.1.
+     */
+    public static final long DEFAULT_RTO = 100L;
+
+    /**
+     * The smallest RTO we'll ever use.  Servers on the same LAN can answer
+     * in well under a millisecond, but we don't want to retransmit faster
+     * than the scheduler can reasonably keep up with.
+     */
+    public static final long MIN_RTO = 10L;
+
+    /**
+     * The largest RTO we'll ever use, even after repeated timeouts.
+     */
+    public static final long MAX_RTO = 3000L;
+
+    /**
+     * RFC 5389 says cached RTO values should be considered stale after
+     * 10 minutes.
+     */
+    private static final long STALE_TIME = 10 * 60 * 1000L;
+
+    private static final double ALPHA = 1.0 / 8.0;
+
+    private static final double BETA = 1.0 / 4.0;
+
+    private static final int K = 4;
+
+    /**
+     * The number of recent samples we keep for percentile estimates.
+     */
+    private static final int RECENT_SAMPLES = 32;
+
+    /**
+     * The number of samples we need before we trust our percentiles.
+     */
+    private static final int MIN_PERCENTILE_SAMPLES = 5;
+
+    private final long[] m_recent = new long[RECENT_SAMPLES];
+
+    private int m_recentCount;
+
+    private int m_recentIndex;
+
+    private double m_srtt;
+
+    private double m_rttVar;
+
+    private long m_rto = DEFAULT_RTO;
+
+    private boolean m_hasSamples;
+
+    private long m_lastUpdate;
+
+    /**
+     * Adds a new round-trip time measurement.  Callers should follow
+     * Karn's algorithm and only add samples for transactions that were
+     * answered before any retransmission.
+     *
+     * @param rtt The measured round-trip time, in milliseconds.
+     */
+    public synchronized void addSample(final long rtt) {
+        final double sample = Math.max(0L, rtt);
+        if (isStale()) {
+            reset();
+        }
+        if (!m_hasSamples) {
+            m_srtt = sample;
+            m_rttVar = sample / 2.0;
+            m_hasSamples = true;
+        } else {
+            m_rttVar = (1.0 - BETA) * m_rttVar +
+                BETA * Math.abs(m_srtt - sample);
+            m_srtt = (1.0 - ALPHA) * m_srtt + ALPHA * sample;
+        }
+        m_rto = clamp(Math.round(m_srtt + Math.max(MIN_RTO, K * m_rttVar)));
+        m_lastUpdate = System.currentTimeMillis();
+        
+        m_recent[m_recentIndex] = Math.max(0L, rtt);
+        m_recentIndex = (m_recentIndex + 1) % RECENT_SAMPLES;
+        if (m_recentCount < RECENT_SAMPLES) {
+            m_recentCount++;
+        }
+    }
+
+    /**
+     * Called when a transaction to the server timed out completely.  This
+     * backs off the RTO so we don't keep hammering a server that's slower
+     * than we thought.
+     */
+    public synchronized void onTimeout() {
+        if (isStale()) {
+            reset();
+        }
+        m_rto = clamp(m_rto * 2);
+        m_lastUpdate = System.currentTimeMillis();
+    }
+
+    /**
+     * Accessor for the RTO to use for the next transaction to this server.
+     *
+     * @return The RTO in milliseconds.
+     */
+    public synchronized long getRto() {
+        if (isStale()) {
+            reset();
+        }
+        return m_rto;
+    }
+
+    /**
+     * Returns the specified percentile of recent round-trip times.
+     *
+     * @param percentile The percentile, between 0 and 1.
+     * @return The round-trip time at that percentile in milliseconds, or -1
+     * if we don't have enough current samples.
+     */
+    public synchronized long getPercentile(final double percentile) {
+        if (m_recentCount < MIN_PERCENTILE_SAMPLES || isStale()) {
+            return -1L;
+        }
+        final long[] sorted = Arrays.copyOf(m_recent, m_recentCount);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile * m_recentCount) - 1;
+        return sorted[Math.min(m_recentCount - 1, Math.max(0, index))];
+    }
+
+    /**
+     * Returns how long to wait for this server before hedging a request to
+     * another server.  This is the 95th percentile of recent round-trip
+     * times if we have enough samples, and the RTO otherwise.
+     *
+     * @return The hedging delay in milliseconds.
+     */
+    public synchronized long getHedgeDelay() {
+        final long p95 = getPercentile(0.95);
+        if (p95 < 0L) {
+            return getRto();
+        }
+        return Math.max(MIN_RTO, p95);
+    }
+
+    /**
+     * Accessor for the smoothed round-trip time.
+     *
+     * @return The smoothed round-trip time in milliseconds, or -1 if we
+     * don't have any current samples.
+     */
+    public synchronized double getSrtt() {
+        if (!m_hasSamples || isStale()) {
+            return -1;
+        }
+        return m_srtt;
+    }
+
+    /**
+     * Accessor for the round-trip time variation.
+     *
+     * @return The round-trip time variation in milliseconds, or -1 if we
+     * don't have any current samples.
+     */
+    public synchronized double getRttVar() {
+        if (!m_hasSamples || isStale()) {
+            return -1;
+        }
+        return m_rttVar;
+    }
+
+    /**
+     * Returns whether or not we haven't heard anything about this server
+     * recently enough to trust our estimates.
+     *
+     * @return <code>true</code> if the estimates are stale.
+     */
+    public synchronized boolean isStale() {
+        return m_lastUpdate != 0L &&
+            System.currentTimeMillis() - m_lastUpdate > STALE_TIME;
+    }
+
+    /**
+     * Writes our estimates in a compact binary form so they can survive a
+     * restart.
+     *
+     * @param out The output to write to.
+     * @throws IOException If we can't write the estimates.
+     */
+    synchronized void write(final DataOutput out) throws IOException {
+        out.writeBoolean(m_hasSamples);
+        out.writeDouble(m_srtt);
+        out.writeDouble(m_rttVar);
+        out.writeLong(m_rto);
+        out.writeLong(m_lastUpdate);
+        out.writeByte(m_recentCount);
+        for (int i = 0; i < m_recentCount; i++) {
+            // Oldest first, so reading them back in order keeps the order.
+            final int index = m_recentCount < RECENT_SAMPLES ? 
+                i : (m_recentIndex + i) % RECENT_SAMPLES;
+            out.writeInt((int) Math.min(Integer.MAX_VALUE, m_recent[index]));
+        }
+    }
+
+    /**
+     * Reads estimates written with {@link #write(DataOutput)}.  We only
+     * take them if we don't have estimates of our own yet, but we always
+     * read them all so the input stays in step.
+     *
+     * @param in The input to read from.
+     * @throws IOException If we can't read the estimates.
+     */
+    synchronized void read(final DataInput in) throws IOException {
+        final boolean hasSamples = in.readBoolean();
+        final double srtt = in.readDouble();
+        final double rttVar = in.readDouble();
+        final long rto = in.readLong();
+        final long lastUpdate = in.readLong();
+        final int count = Math.min(RECENT_SAMPLES, in.readUnsignedByte());
+        final long[] recent = new long[count];
+        for (int i = 0; i < count; i++) {
+            recent[i] = in.readInt();
+        }
+        if (m_hasSamples || m_lastUpdate != 0L) {
+            return;
+        }
+        m_hasSamples = hasSamples;
+        m_srtt = srtt;
+        m_rttVar = rttVar;
+        m_rto = clamp(rto);
+        m_lastUpdate = lastUpdate;
+        System.arraycopy(recent, 0, m_recent, 0, count);
+        m_recentCount = count;
+        m_recentIndex = count % RECENT_SAMPLES;
+    }
+
+    private void reset() {
+        m_srtt = 0;
+        m_rttVar = 0;
+        m_rto = DEFAULT_RTO;
+        m_hasSamples = false;
+        m_lastUpdate = 0L;
+        m_recentCount = 0;
+        m_recentIndex = 0;
+    }
+
+    private static long clamp(final long rto) {
+        return Math.min(MAX_RTO, Math.max(MIN_RTO, rto));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RttEstimator [srtt=" + m_srtt + " rttvar=" + m_rttVar +
+            " rto=" + m_rto + "]";
+    }
+}
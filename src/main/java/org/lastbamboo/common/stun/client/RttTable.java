@@ -0,0 +1,78 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of round-trip time estimates for each STUN server we've talked to.
+ * RFC 5389 section 7.2.1 says clients should cache the RTO for a server and
+ * use it as the starting value for the next transaction, so we share this
+ * across all clients in the process.
+ */
+public class RttTable {
+
+    /**
+     * The maximum number of destinations we keep estimates for.  Callers can
+     * write to arbitrary addresses, so we don't want this to grow without
+     * bound.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final ConcurrentHashMap<InetSocketAddress, RttEstimator> 
+        estimators = new ConcurrentHashMap<InetSocketAddress, RttEstimator>();
+
+    private RttTable(){}
+
+    /**
+     * Returns the RTT estimator for the specified server, creating it if
+     * necessary.
+     *
+     * @param server The address of the server.
+     * @return The estimator for that server.
+     */
+    public static RttEstimator getEstimator(final InetSocketAddress server) {
+        final RttEstimator existing = estimators.get(server);
+        if (existing != null) {
+            return existing;
+        }
+        if (estimators.size() >= MAX_ENTRIES) {
+            pruneStale();
+            if (estimators.size() >= MAX_ENTRIES) {
+                // Still full -- just hand out an estimator we don't cache.
+                return new RttEstimator();
+            }
+        }
+        final RttEstimator created = new RttEstimator();
+        final RttEstimator raced = estimators.putIfAbsent(server, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Returns the RTO to use for a new transaction with the specified server.
+     *
+     * @param server The address of the server.
+     * @return The RTO in milliseconds.
+     */
+    public static long getRto(final InetSocketAddress server) {
+        return getEstimator(server).getRto();
+    }
+
+    /**
+     * Forgets every estimate, for testing.
+     */
+    static void clear() {
+        estimators.clear();
+    }
+
+    private static void pruneStale() {
+        final Iterator<Entry<InetSocketAddress, RttEstimator>> iter =
+            estimators.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getValue().isStale()) {
+                iter.remove();
+            }
+        }
+    }
+}
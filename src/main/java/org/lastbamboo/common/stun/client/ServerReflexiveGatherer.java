@@ -0,0 +1,455 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gathers server reflexive candidates for every local interface at once.
+ * We bind a socket on each interface and send binding requests from all of
+ * them in parallel, taking the first answer for each interface, so
+ * gathering takes about one round trip no matter how many interfaces there
+ * are.  Each interface only asks the best {@link #FANOUT} servers we know
+ * of, moving on to the next best whenever one fails, so we don't load
+ * every server with a request from every interface.  The sockets stay
+ * bound -- and so the NAT bindings stay alive -- until {@link #close()} is
+ * called.
+ */
+public class ServerReflexiveGatherer {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ServerReflexiveGatherer.class);
+
+    /**
+     * The most servers each interface asks at once.
+     */
+    private static final int FANOUT = 2;
+
+    private final Collection<InetSocketAddress> m_stunServers;
+
+    private final Collection<NioStunClient> m_clients =
+        new CopyOnWriteArrayList<NioStunClient>();
+
+    /**
+     * Creates a new gatherer.
+     *
+     * @param stunServers The STUN servers to use.
+     */
+    public ServerReflexiveGatherer(
+        final Collection<InetSocketAddress> stunServers) {
+        if (stunServers == null || stunServers.isEmpty()) {
+            throw new IllegalArgumentException("No STUN servers");
+        }
+        this.m_stunServers = stunServers;
+    }
+
+    /**
+     * Gathers candidates for all the addresses of all the interfaces that
+     * are up, other than loopback and link-local addresses.
+     *
+     * @param budget The maximum time to wait for responses, in
+     * milliseconds.
+     * @return Map of host candidates to their server reflexive candidates.
+     * Interfaces we didn't hear back for in time are left out.
+     * @throws IOException If we can't enumerate the local interfaces.
+     */
+    public Map<InetSocketAddress, InetSocketAddress> gather(final long budget)
+        throws IOException {
+        return gather(getLocalAddresses(), budget);
+    }
+
+    /**
+     * Gathers candidates for the specified local addresses.
+     *
+     * @param localAddresses The local addresses to gather from.
+     * @param budget The maximum time to wait for responses, in
+     * milliseconds.
+     * @return Map of host candidates to their server reflexive candidates.
+     * Addresses we didn't hear back for in time are left out.
+     * @throws IOException If we're interrupted.
+     */
+    public Map<InetSocketAddress, InetSocketAddress> gather(
+        final Collection<InetAddress> localAddresses, final long budget)
+        throws IOException {
+        final CompletableFuture<Map<InetSocketAddress, InetSocketAddress>>
+            future = gatherAsync(localAddresses, budget);
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            LOG.info("Interrupt", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IOException("Interrupted gathering candidates");
+        } catch (final ExecutionException e) {
+            // We never complete exceptionally.
+            throw new IOException("Could not gather candidates", e);
+        }
+    }
+
+    /**
+     * Gathers candidates for the specified local addresses without
+     * blocking.
+     *
+     * @param localAddresses The local addresses to gather from.
+     * @param budget The maximum time to wait for responses, in
+     * milliseconds.
+     * @return A future that completes with the map of host candidates to
+     * server reflexive candidates once we've heard back for every address
+     * or the budget runs out, whichever comes first.
+     */
+    public CompletableFuture<Map<InetSocketAddress, InetSocketAddress>>
+        gatherAsync(final Collection<InetAddress> localAddresses,
+            final long budget) {
+        final Map<InetSocketAddress, InetSocketAddress> candidates =
+            Collections.synchronizedMap(
+                new LinkedHashMap<InetSocketAddress, InetSocketAddress>());
+        final List<CompletableFuture<InetSocketAddress>> lookups =
+            new ArrayList<CompletableFuture<InetSocketAddress>>();
+        final List<CompletableFuture<InetSocketAddress>> recorded =
+            new ArrayList<CompletableFuture<InetSocketAddress>>();
+        for (final InetAddress ia : localAddresses) {
+            final NioStunClient client;
+            try {
+                client = new NioStunClient(new InetSocketAddress(ia, 0),
+                    serversFor(ia));
+                client.connect();
+            } catch (final IOException e) {
+                LOG.info("Could not gather from: " + ia, e);
+                continue;
+            }
+            this.m_clients.add(client);
+            final CompletableFuture<InetSocketAddress> lookup =
+                firstResponse(client);
+            lookups.add(lookup);
+
+            // Wait on the stage that records the candidate rather than the
+            // lookup itself, so we never finish before it's in the map.
+            recorded.add(lookup.whenComplete(
+                new BiConsumer<InetSocketAddress, Throwable>() {
+                @Override
+                public void accept(final InetSocketAddress srflx,
+                    final Throwable t) {
+                    if (srflx != null) {
+                        candidates.put(client.getHostAddress(), srflx);
+                    }
+                }
+            }));
+        }
+
+        final CompletableFuture<Map<InetSocketAddress, InetSocketAddress>>
+            result =
+            new CompletableFuture<Map<InetSocketAddress, InetSocketAddress>>();
+        final CompletableFuture<Void> all = CompletableFuture.allOf(
+            recorded.toArray(new CompletableFuture<?>[recorded.size()]));
+        all.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(final Void v, final Throwable t) {
+                result.complete(copy(candidates));
+            }
+        });
+        final HashedTimerWheel.Timeout timeout =
+            RetransmissionSchedule.TIMER.schedule(
+                new HashedTimerWheel.TimerTask() {
+                @Override
+                public void run(final HashedTimerWheel.Timeout timeout) {
+                    if (result.complete(copy(candidates))) {
+                        LOG.debug("Gathering budget expired");
+                    }
+                    for (final CompletableFuture<InetSocketAddress> lookup :
+                        lookups) {
+                        lookup.cancel(false);
+                    }
+                }
+            }, budget, TimeUnit.MILLISECONDS);
+        result.whenComplete(
+            new BiConsumer<Map<InetSocketAddress, InetSocketAddress>,
+                Throwable>() {
+            @Override
+            public void accept(
+                final Map<InetSocketAddress, InetSocketAddress> map,
+                final Throwable t) {
+                timeout.cancel();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sends binding requests from the client to its best servers and
+     * completes with the first mapped address we get back, or with
+     * <code>null</code> if every server fails.
+     */
+    private static CompletableFuture<InetSocketAddress> firstResponse(
+        final NioStunClient client) {
+        final Lookup lookup = new Lookup(client);
+
+        // Wait until we can rank all the servers without blocking.  The
+        // gathering budget still bounds how long that takes.
+        client.getServersResolved().thenRun(new Runnable() {
+            @Override
+            public void run() {
+                lookup.start();
+            }
+        });
+        return lookup.m_first;
+    }
+
+    /**
+     * Returns the servers we can reach from the specified local address,
+     * which are the servers of the same address family.
+     */
+    private Collection<InetSocketAddress> serversFor(final InetAddress local)
+        throws IOException {
+        final Collection<InetSocketAddress> servers =
+            new ArrayList<InetSocketAddress>();
+        for (final InetSocketAddress server : this.m_stunServers) {
+            // Unresolved servers get resolved by the client.
+            if (server.isUnresolved() || (server.getAddress() instanceof
+                Inet6Address) == (local instanceof Inet6Address)) {
+                servers.add(server);
+            }
+        }
+        if (servers.isEmpty()) {
+            throw new IOException("No STUN servers for: " + local);
+        }
+        return servers;
+    }
+
+    private static Map<InetSocketAddress, InetSocketAddress> copy(
+        final Map<InetSocketAddress, InetSocketAddress> candidates) {
+        synchronized (candidates) {
+            return new LinkedHashMap<InetSocketAddress, InetSocketAddress>(
+                candidates);
+        }
+    }
+
+    /**
+     * Returns the addresses of all the interfaces that are up, other than
+     * loopback and link-local addresses.
+     *
+     * @return The local addresses.
+     * @throws SocketException If we can't enumerate the interfaces.
+     */
+    public static Collection<InetAddress> getLocalAddresses()
+        throws SocketException {
+        final Collection<InetAddress> addresses = new ArrayList<InetAddress>();
+        final Enumeration<NetworkInterface> interfaces =
+            NetworkInterface.getNetworkInterfaces();
+        if (interfaces == null) {
+            return addresses;
+        }
+        while (interfaces.hasMoreElements()) {
+            final NetworkInterface ni = interfaces.nextElement();
+            if (!ni.isUp() || ni.isLoopback()) {
+                continue;
+            }
+            final Enumeration<InetAddress> ias = ni.getInetAddresses();
+            while (ias.hasMoreElements()) {
+                final InetAddress ia = ias.nextElement();
+                if (!ia.isLoopbackAddress() && !ia.isLinkLocalAddress()) {
+                    addresses.add(ia);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Closes all the sockets we've gathered from.
+     */
+    public void close() {
+        for (final NioStunClient client : this.m_clients) {
+            client.close();
+        }
+        this.m_clients.clear();
+    }
+
+    /**
+     * A server we might ask, with what we know about it if anything.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        private final InetSocketAddress m_address;
+
+        /**
+         * The shared server, or <code>null</code> if its name hasn't
+         * resolved yet.
+         */
+        private final RankedStunServer m_server;
+
+        private Candidate(final InetSocketAddress address) {
+            this.m_address = address;
+            final CompletableFuture<RankedStunServer> future =
+                StunServerHealth.getServerAsync(address);
+            this.m_server = future.isDone() &&
+                !future.isCompletedExceptionally() ? future.join() : null;
+        }
+
+        private boolean isOpen() {
+            return m_server != null && m_server.isOpen();
+        }
+
+        private double getScore() {
+            return m_server == null ?
+                RttEstimator.DEFAULT_RTO : m_server.getScore();
+        }
+
+        @Override
+        public int compareTo(final Candidate other) {
+            // Servers with open breakers go last, whatever their scores.
+            if (isOpen() != other.isOpen()) {
+                return isOpen() ? 1 : -1;
+            }
+            return Double.compare(getScore(), other.getScore());
+        }
+    }
+
+    /**
+     * Asks one interface's best {@link #FANOUT} servers at once, replacing
+     * each one that fails with the next best until we get an answer or run
+     * out of servers.
+     */
+    private static final class Lookup {
+
+        private final NioStunClient m_client;
+
+        /**
+         * The servers in the order we'll try them, once we've started.
+         */
+        private volatile List<Candidate> m_candidates;
+
+        private final CompletableFuture<InetSocketAddress> m_first =
+            new CompletableFuture<InetSocketAddress>();
+
+        private final Collection<CompletableFuture<StunMessage>> m_responses =
+            new ConcurrentLinkedQueue<CompletableFuture<StunMessage>>();
+
+        private final AtomicInteger m_next = new AtomicInteger();
+
+        /**
+         * Requests we haven't heard the outcome of yet.
+         */
+        private final AtomicInteger m_pending = new AtomicInteger();
+
+        private Lookup(final NioStunClient client) {
+            this.m_client = client;
+        }
+
+        private void start() {
+            if (m_first.isDone()) {
+                // The budget ran out before our servers resolved.
+                return;
+            }
+            final List<Candidate> candidates = new ArrayList<Candidate>();
+            for (final InetSocketAddress server : m_client.getStunServers()) {
+                candidates.add(new Candidate(server));
+            }
+            Collections.sort(candidates);
+            this.m_candidates = candidates;
+            for (int i = 0; i < FANOUT; i++) {
+                sendNext();
+            }
+            if (m_pending.get() == 0) {
+                m_first.complete(null);
+            }
+
+            // Once we have an answer, or have given up, stop retransmitting
+            // to everyone else.
+            m_first.whenComplete(
+                new BiConsumer<InetSocketAddress, Throwable>() {
+                @Override
+                public void accept(final InetSocketAddress srflx,
+                    final Throwable t) {
+                    for (final CompletableFuture<StunMessage> response :
+                        m_responses) {
+                        response.cancel(false);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Sends to the next best server we haven't tried yet.
+         *
+         * @return <code>false</code> if there are no servers left.
+         */
+        private boolean sendNext() {
+            while (true) {
+                final int index = m_next.getAndIncrement();
+                if (index >= m_candidates.size()) {
+                    return false;
+                }
+                final Candidate candidate = m_candidates.get(index);
+                final StunClientTransaction tx;
+                try {
+                    tx = m_client.startTransactions(
+                        Collections.singletonList(new BindingRequest()),
+                        candidate.m_address,
+                        RttTable.getRto(candidate.m_address)).get(0);
+                } catch (final IOException e) {
+                    LOG.info("Could not send to: " + candidate.m_address, e);
+                    continue;
+                }
+                m_pending.incrementAndGet();
+                m_responses.add(tx.getFuture());
+                tx.getFuture().whenComplete(
+                    new BiConsumer<StunMessage, Throwable>() {
+                    @Override
+                    public void accept(final StunMessage message,
+                        final Throwable t) {
+                        onResponse(candidate, tx, message, t);
+                    }
+                });
+                return true;
+            }
+        }
+
+        private void onResponse(final Candidate candidate,
+            final StunClientTransaction tx, final StunMessage message,
+            final Throwable t) {
+            if (m_first.isDone()) {
+                // We cancelled this one, which says nothing about the
+                // server.
+                return;
+            }
+            if (candidate.m_server != null) {
+                candidate.m_server.onTransactionDone(tx, message, t);
+            }
+            if (message instanceof BindingSuccessResponse) {
+                m_first.complete(
+                    ((BindingSuccessResponse) message).getMappedAddress());
+                return;
+            }
+
+            // Start on the next server before we count this one out, so we
+            // never think we're done while there's still one to ask.
+            sendNext();
+            if (m_pending.decrementAndGet() == 0) {
+                m_first.complete(null);
+            }
+        }
+    }
+}
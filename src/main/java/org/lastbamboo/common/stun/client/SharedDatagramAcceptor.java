@@ -0,0 +1,160 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.littleshoot.mina.common.IoAcceptor;
+import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.IoServiceListener;
+import org.littleshoot.mina.common.IoSession;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptor;
+import org.littleshoot.mina.transport.socket.nio.DatagramAcceptorConfig;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reference-counted {@link DatagramAcceptor} shared by all UDP STUN clients
+ * running in single socket mode.  Each client binds its own unconnected
+ * socket on the acceptor and then creates a session per STUN server on top
+ * of that one socket, so a client talking to any number of servers uses one
+ * NAT binding, one file descriptor and one selector key.
+ */
+final class SharedDatagramAcceptor {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SharedDatagramAcceptor.class);
+
+    private static SharedDatagramAcceptor instance;
+
+    private static int references;
+
+    private final DatagramAcceptor m_acceptor;
+
+    private SharedDatagramAcceptor() {
+        final DatagramAcceptor acceptor = new DatagramAcceptor();
+        final DatagramAcceptorConfig cfg = acceptor.getDefaultConfig();
+        cfg.getSessionConfig().setReuseAddress(true);
+        cfg.setThreadModel(StunExecutors.toThreadModel(null));
+        acceptor.getFilterChain().addLast("bindingResponseFilter",
+            new BindingResponseFilter());
+        acceptor.getFilterChain().addLast("stunFilter",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        this.m_acceptor = acceptor;
+    }
+
+    /**
+     * Returns the shared acceptor, creating it if nobody else is using it.
+     * Every call must be matched with a call to {@link #release()}.
+     *
+     * @return The shared acceptor.
+     */
+    static synchronized SharedDatagramAcceptor acquire() {
+        if (instance == null) {
+            LOG.debug("Creating shared datagram acceptor");
+            instance = new SharedDatagramAcceptor();
+        }
+        references++;
+        return instance;
+    }
+
+    /**
+     * Releases a reference to the acceptor.  Once there are no references
+     * left the next {@link #acquire()} creates a fresh acceptor.
+     */
+    void release() {
+        synchronized (SharedDatagramAcceptor.class) {
+            if (references == 0 || instance != this) {
+                LOG.warn("Released acceptor we don't hold");
+                return;
+            }
+            references--;
+            if (references == 0) {
+                LOG.debug("Last reference to shared acceptor released");
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * Binds a new unconnected socket.
+     *
+     * @param localAddress The address to bind to, or <code>null</code> to
+     * bind to an ephemeral port on all interfaces.
+     * @param handler The handler for messages received on the socket.
+     * @param threadModel The thread model for sessions on the socket.
+     * @return The address we actually bound to.
+     * @throws IOException If we can't bind.
+     */
+    InetSocketAddress bind(final InetSocketAddress localAddress,
+        final IoHandler handler, final ThreadModel threadModel) 
+        throws IOException {
+        final InetSocketAddress toBind = 
+            localAddress == null ? new InetSocketAddress(0) : localAddress;
+        LOG.debug("Binding to: {}", toBind);
+        final DatagramAcceptorConfig cfg = 
+            (DatagramAcceptorConfig) m_acceptor.getDefaultConfig().clone();
+        cfg.setThreadModel(threadModel);
+        if (toBind.getPort() != 0) {
+            m_acceptor.bind(toBind, handler, cfg);
+            return toBind;
+        }
+
+        // The acceptor keys the socket on the address it actually bound to
+        // and announces that address before bind returns, so we pick it up
+        // from our own activation rather than guessing a free port first.
+        final AtomicReference<InetSocketAddress> bound = 
+            new AtomicReference<InetSocketAddress>();
+        final IoServiceListener listener = new IoServiceListener() {
+            @Override
+            public void serviceActivated(final IoService service, 
+                final SocketAddress serviceAddress, final IoHandler h, 
+                final IoServiceConfig config) {
+                if (config == cfg) {
+                    bound.set((InetSocketAddress) serviceAddress);
+                }
+            }
+
+            @Override
+            public void serviceDeactivated(final IoService service,
+                final SocketAddress serviceAddress, final IoHandler h,
+                final IoServiceConfig config) {
+            }
+
+            @Override
+            public void sessionCreated(final IoSession session) {
+            }
+
+            @Override
+            public void sessionDestroyed(final IoSession session) {
+            }
+        };
+        m_acceptor.addListener(listener);
+        try {
+            m_acceptor.bind(toBind, handler, cfg);
+        } finally {
+            m_acceptor.removeListener(listener);
+        }
+        final InetSocketAddress actual = bound.get();
+        if (actual == null) {
+            throw new IOException("Could not get bound address for: " + 
+                toBind);
+        }
+        return actual;
+    }
+
+    /**
+     * Accessor for the underlying acceptor.
+     *
+     * @return The acceptor.
+     */
+    IoAcceptor getAcceptor() {
+        return m_acceptor;
+    }
+}
@@ -0,0 +1,100 @@
+package org.lastbamboo.common.stun.client;
+
+import org.littleshoot.mina.common.IoConnector;
+import org.littleshoot.mina.common.IoServiceConfig;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
+import org.littleshoot.mina.transport.socket.nio.DatagramConnector;
+import org.littleshoot.mina.transport.socket.nio.DatagramConnectorConfig;
+import org.littleshoot.stun.stack.StunProtocolCodecFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reference-counted {@link DatagramConnector} shared by all UDP STUN
+ * clients in the process.  Setting up a connector, its codec filter and
+ * its selector thread is relatively expensive, and there's no reason each
+ * client needs its own -- sessions are what separate one client's traffic
+ * from another's.
+ */
+final class SharedDatagramConnector {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SharedDatagramConnector.class);
+
+    private static SharedDatagramConnector instance;
+
+    private static int references;
+
+    private final DatagramConnector m_connector;
+
+    private SharedDatagramConnector() {
+        final DatagramConnector connector = new DatagramConnector();
+        final DatagramConnectorConfig cfg = connector.getDefaultConfig();
+        cfg.getSessionConfig().setReuseAddress(true);
+        cfg.setThreadModel(StunExecutors.toThreadModel(null));
+        connector.getFilterChain().addLast("bindingResponseFilter",
+            new BindingResponseFilter());
+        connector.getFilterChain().addLast("stunFilter",
+            new ProtocolCodecFilter(new StunProtocolCodecFactory()));
+        this.m_connector = connector;
+    }
+
+    /**
+     * Returns the shared connector, creating it if nobody else is using it.
+     * Every call must be matched with a call to {@link #release()}.
+     *
+     * @return The shared connector.
+     */
+    static synchronized SharedDatagramConnector acquire() {
+        if (instance == null) {
+            LOG.debug("Creating shared datagram connector");
+            instance = new SharedDatagramConnector();
+        }
+        references++;
+        return instance;
+    }
+
+    /**
+     * Releases a reference to the connector.  Once there are no references
+     * left the next {@link #acquire()} creates a fresh connector.  MINA shuts
+     * down the selector thread on its own once there are no sessions left.
+     */
+    void release() {
+        synchronized (SharedDatagramConnector.class) {
+            if (references == 0 || instance != this) {
+                LOG.warn("Released connector we don't hold");
+                return;
+            }
+            references--;
+            if (references == 0) {
+                LOG.debug("Last reference to shared connector released");
+                instance = null;
+            }
+        }
+    }
+
+    /**
+     * Creates a connection config that uses the specified thread model.
+     * This lets each client choose how its own sessions are handled 
+     * without needing a connector of its own.
+     *
+     * @param threadModel The thread model.
+     * @return The new config.
+     */
+    IoServiceConfig newConfig(final ThreadModel threadModel) {
+        final DatagramConnectorConfig cfg = 
+            (DatagramConnectorConfig) m_connector.getDefaultConfig().clone();
+        cfg.setThreadModel(threadModel);
+        return cfg;
+    }
+
+    /**
+     * Accessor for the underlying connector.
+     *
+     * @return The connector.
+     */
+    IoConnector getConnector() {
+        return m_connector;
+    }
+}
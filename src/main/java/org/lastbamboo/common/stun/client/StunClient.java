@@ -2,6 +2,9 @@ package org.lastbamboo.common.stun.client;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.littleshoot.stun.stack.StunAddressProvider;
 import org.littleshoot.stun.stack.message.BindingRequest;
@@ -15,8 +18,9 @@ public interface StunClient extends StunAddressProvider
     {
     
     /**
-     * Writes a STUN binding request.  This uses the default STUN RTO value
-     * of 100ms.
+     * Writes a STUN binding request.  This uses the RTO learned from 
+     * previous transactions with the same server, or the default STUN RTO 
+     * value of 100ms if we don't have one.
      * 
      * @param request The STUN binding request.
      * @param remoteAddress The address to send the request to.
@@ -40,6 +44,76 @@ public interface StunClient extends StunAddressProvider
     StunMessage write(BindingRequest request, InetSocketAddress remoteAddress,
         long rto) throws IOException;
 
+    /**
+     * Writes a STUN binding request without blocking.  This uses the RTO 
+     * learned from previous transactions with the same server, or the 
+     * default STUN RTO value of 100ms if we don't have one.
+     * 
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @return A future that completes with the response message, or with a
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if the 
+     * transaction times out.
+     * @throws IOException If there's an IO error writing the message.
+     */
+    CompletableFuture<StunMessage> writeAsync(BindingRequest request, 
+        InetSocketAddress remoteAddress) throws IOException;
+
+    /**
+     * Writes a STUN binding request without blocking, with the RTO value 
+     * used for retransmissions explicitly set.
+     * 
+     * @param request The STUN binding request.
+     * @param remoteAddress The address to send the request to.
+     * @param rto The value to use for RTO when calculating retransmission 
+     * times.  Note this only applies to UDP.
+     * @return A future that completes with the response message, or with a
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} if the 
+     * transaction times out.
+     * @throws IOException If there's an IO error writing the message.
+     */
+    CompletableFuture<StunMessage> writeAsync(BindingRequest request, 
+        InetSocketAddress remoteAddress, long rto) throws IOException;
+
+    /**
+     * Writes a batch of STUN binding requests back to back on a single
+     * session, sharing one retransmission schedule.  This is much faster 
+     * than writing the requests one at a time when probing a single server
+     * many times, for example to measure jitter.
+     * 
+     * @param requests The STUN binding requests.
+     * @param remoteAddress The address to send the requests to.
+     * @return The response messages, in the same order as the requests.  
+     * Requests that timed out have a 
+     * {@link org.littleshoot.stun.stack.message.NullStunMessage} response.
+     * @throws IOException If there's an IO error writing the messages.
+     */
+    List<StunMessage> writeAll(Collection<BindingRequest> requests, 
+        InetSocketAddress remoteAddress) throws IOException;
+
+    /**
+     * Writes a batch of STUN binding requests back to back on a single
+     * session without blocking, sharing one retransmission schedule.
+     * 
+     * @param requests The STUN binding requests.
+     * @param remoteAddress The address to send the requests to.
+     * @return Futures for the responses, in the same order as the requests.
+     * Each future completes as soon as its own response arrives.
+     * @throws IOException If there's an IO error writing the messages.
+     */
+    List<CompletableFuture<StunMessage>> writeAllAsync(
+        Collection<BindingRequest> requests, InetSocketAddress remoteAddress) 
+        throws IOException;
+
+    /**
+     * Gets the server reflexive address without blocking.
+     * 
+     * @return A future that completes with the server reflexive address, or
+     * completes exceptionally with an {@link IOException} if no server 
+     * could give us one.
+     */
+    CompletableFuture<InetSocketAddress> getServerReflexiveAddressAsync();
+
     void addIoServiceListener(IoServiceListener serviceListener);
 
     void connect() throws IOException;
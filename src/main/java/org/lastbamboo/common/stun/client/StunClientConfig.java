@@ -1,5 +1,8 @@
 package org.lastbamboo.common.stun.client;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
 /**
  * Simple class for storing configuration. We cheat here and make
  * this all static to avoid the overhead of integrating dependency 
@@ -10,6 +13,33 @@ public class StunClientConfig {
 
     private static boolean useDnsSec = false;
     
+    private static int maxPendingTransactions = 4096;
+    
+    private static long icmpDownPeriod = 30 * 1000L;
+    
+    private static boolean hedgeRequests = false;
+    
+    private static boolean useSingleSocket = false;
+    
+    private static BindingRequestTemplate bindingRequestTemplate = 
+        BindingRequestTemplate.PLAIN;
+    
+    private static Executor executor = null;
+    
+    private static long tcpTransactionTimeout = 39500L;
+    
+    private static long udpTransactionTimeout = 39500L;
+    
+    private static long dualStackGracePeriod = 250L;
+    
+    private static File serverHealthFile = null;
+    
+    private static long serverProbeInterval = 60 * 1000L;
+    
+    private static int maxServerProbesPerSecond = 2;
+    
+    private static boolean twoChoiceServerSelection = false;
+    
     private StunClientConfig(){}
 
     /**
@@ -31,4 +61,298 @@ public class StunClientConfig {
     public static boolean isUseDnsSec() {
         return useDnsSec;
     }
-}
\ No newline at end of file
+
+    /**
+     * Sets the maximum number of transactions each client will keep 
+     * outstanding at once.  If a client goes over this, its oldest
+     * transaction is abandoned as if it had timed out.
+     * 
+     * @param maxPendingTransactions The maximum number of outstanding 
+     * transactions per client.
+     */
+    public static void setMaxPendingTransactions(
+        final int maxPendingTransactions) {
+        StunClientConfig.maxPendingTransactions = maxPendingTransactions;
+    }
+
+    /**
+     * The maximum number of transactions each client will keep outstanding
+     * at once.
+     * 
+     * @return The maximum number of outstanding transactions per client.
+     */
+    public static int getMaxPendingTransactions() {
+        return maxPendingTransactions;
+    }
+
+    /**
+     * Sets how long to skip a STUN server after we receive an ICMP error,
+     * such as port unreachable, for it.
+     * 
+     * @param icmpDownPeriod The time to skip the server, in milliseconds.
+     */
+    public static void setIcmpDownPeriod(final long icmpDownPeriod) {
+        StunClientConfig.icmpDownPeriod = icmpDownPeriod;
+    }
+
+    /**
+     * How long to skip a STUN server after we receive an ICMP error for it.
+     * 
+     * @return The time to skip the server, in milliseconds.
+     */
+    public static long getIcmpDownPeriod() {
+        return icmpDownPeriod;
+    }
+
+    /**
+     * Sets whether or not to hedge server reflexive address lookups.  When
+     * hedging, if the top-ranked server hasn't answered within its 95th 
+     * percentile round-trip time we send a second request to the next 
+     * server and take whichever answer comes back first.
+     * 
+     * @param hedgeRequests Whether or not to hedge requests.
+     */
+    public static void setHedgeRequests(final boolean hedgeRequests) {
+        StunClientConfig.hedgeRequests = hedgeRequests;
+    }
+
+    /**
+     * Whether or not we're configured to hedge server reflexive address 
+     * lookups.
+     * 
+     * @return <code>true</code> if configured to hedge requests, otherwise
+     * <code>false</code>.
+     */
+    public static boolean isHedgeRequests() {
+        return hedgeRequests;
+    }
+
+    /**
+     * Sets whether new UDP clients should use a single unconnected socket 
+     * to talk to all STUN servers rather than connecting a socket to each 
+     * server.  This uses one NAT binding and one file descriptor per client
+     * no matter how many servers it talks to.  Note unconnected sockets 
+     * don't receive ICMP errors, so dead servers take the full 
+     * retransmission timeout to fail in this mode.
+     * 
+     * @param useSingleSocket Whether or not to use a single socket.
+     */
+    public static void setUseSingleSocket(final boolean useSingleSocket) {
+        StunClientConfig.useSingleSocket = useSingleSocket;
+    }
+
+    /**
+     * Whether or not new UDP clients use a single unconnected socket for
+     * all STUN servers.
+     * 
+     * @return <code>true</code> if configured to use a single socket, 
+     * otherwise <code>false</code>.
+     */
+    public static boolean isUseSingleSocket() {
+        return useSingleSocket;
+    }
+
+    /**
+     * Sets the template new clients use to encode binding requests that 
+     * don't carry any attributes of their own, which covers server 
+     * reflexive lookups, keepalives and probes.  Use this to add SOFTWARE 
+     * or FINGERPRINT attributes to those requests.
+     * 
+     * @param bindingRequestTemplate The template to use.
+     */
+    public static void setBindingRequestTemplate(
+        final BindingRequestTemplate bindingRequestTemplate) {
+        StunClientConfig.bindingRequestTemplate = bindingRequestTemplate;
+    }
+
+    /**
+     * Accessor for the template for encoding binding requests.
+     * 
+     * @return The template for encoding binding requests.
+     */
+    public static BindingRequestTemplate getBindingRequestTemplate() {
+        return bindingRequestTemplate;
+    }
+
+    /**
+     * Sets the executor new clients use to handle received messages and 
+     * complete transactions.  This can be {@link StunExecutors#DIRECT} to 
+     * do everything on the I/O thread, an executor from 
+     * {@link StunExecutors#newVirtualThreadExecutor()}, or any other 
+     * executor.  <code>null</code> means the transport's default, which is 
+     * a pool shared by all MINA clients and the selector thread for 
+     * {@link NioStunClient}.
+     * 
+     * @param executor The executor to use.
+     */
+    public static void setExecutor(final Executor executor) {
+        StunClientConfig.executor = executor;
+    }
+
+    /**
+     * Accessor for the executor new clients use to handle received 
+     * messages.
+     * 
+     * @return The executor, or <code>null</code> for the transport's 
+     * default.
+     */
+    public static Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets how long TCP clients wait for a response before giving up on a 
+     * transaction.  There are no retransmissions over TCP, so this is the 
+     * whole budget for each request.  RFC 5389 recommends 39.5 seconds.
+     * 
+     * @param tcpTransactionTimeout The timeout, in milliseconds.
+     */
+    public static void setTcpTransactionTimeout(
+        final long tcpTransactionTimeout) {
+        StunClientConfig.tcpTransactionTimeout = tcpTransactionTimeout;
+    }
+
+    /**
+     * Accessor for how long TCP clients wait for a response.
+     * 
+     * @return The TCP transaction timeout, in milliseconds.
+     */
+    public static long getTcpTransactionTimeout() {
+        return tcpTransactionTimeout;
+    }
+
+    /**
+     * Sets the most time UDP transactions spend retransmitting before 
+     * giving up.  The retransmission schedule stretches with the RTO, so 
+     * without a ceiling a server whose RTO has backed off all the way to 
+     * {@link RttEstimator#MAX_RTO} would hold each transaction open for 
+     * minutes.  RFC 5389 gives up after 39.5 seconds with its default RTO.
+     * 
+     * @param udpTransactionTimeout The timeout, in milliseconds.
+     */
+    public static void setUdpTransactionTimeout(
+        final long udpTransactionTimeout) {
+        StunClientConfig.udpTransactionTimeout = udpTransactionTimeout;
+    }
+
+    /**
+     * Accessor for the most time UDP transactions spend retransmitting.
+     * 
+     * @return The UDP transaction timeout, in milliseconds.
+     */
+    public static long getUdpTransactionTimeout() {
+        return udpTransactionTimeout;
+    }
+
+    /**
+     * Sets how long dual-stack lookups wait for the slower address family 
+     * once the faster one has answered.  This follows the connection 
+     * attempt delay from RFC 8305 (Happy Eyeballs).
+     * 
+     * @param dualStackGracePeriod The grace period, in milliseconds.
+     */
+    public static void setDualStackGracePeriod(
+        final long dualStackGracePeriod) {
+        StunClientConfig.dualStackGracePeriod = dualStackGracePeriod;
+    }
+
+    /**
+     * Accessor for how long dual-stack lookups wait for the slower address
+     * family.
+     * 
+     * @return The grace period, in milliseconds.
+     */
+    public static long getDualStackGracePeriod() {
+        return dualStackGracePeriod;
+    }
+
+    /**
+     * Sets the file we save what we've learned about STUN servers to, so 
+     * the ranking, circuit breakers and RTT estimates survive restarts.  
+     * We load the file the first time we need a server and save it when 
+     * clients close and when the JVM exits.
+     * 
+     * @param serverHealthFile The file, or <code>null</code> to keep 
+     * server health in memory only.
+     */
+    public static void setServerHealthFile(final File serverHealthFile) {
+        StunClientConfig.serverHealthFile = serverHealthFile;
+    }
+
+    /**
+     * Accessor for the file we save what we've learned about STUN servers
+     * to.
+     * 
+     * @return The file, or <code>null</code> if we don't save server 
+     * health.
+     */
+    public static File getServerHealthFile() {
+        return serverHealthFile;
+    }
+
+    /**
+     * Sets how often the background prober checks on each STUN server.  
+     * Servers we've heard from more recently than this through real 
+     * lookups aren't probed at all.
+     * 
+     * @param serverProbeInterval The interval, in milliseconds.
+     */
+    public static void setServerProbeInterval(final long serverProbeInterval) {
+        StunClientConfig.serverProbeInterval = serverProbeInterval;
+    }
+
+    /**
+     * Accessor for how often the background prober checks on each STUN 
+     * server.
+     * 
+     * @return The interval, in milliseconds.
+     */
+    public static long getServerProbeInterval() {
+        return serverProbeInterval;
+    }
+
+    /**
+     * Sets the most probes the background prober sends each second, across
+     * all servers.
+     * 
+     * @param maxServerProbesPerSecond The maximum probe rate.
+     */
+    public static void setMaxServerProbesPerSecond(
+        final int maxServerProbesPerSecond) {
+        StunClientConfig.maxServerProbesPerSecond = maxServerProbesPerSecond;
+    }
+
+    /**
+     * Accessor for the most probes the background prober sends each second.
+     * 
+     * @return The maximum probe rate.
+     */
+    public static int getMaxServerProbesPerSecond() {
+        return maxServerProbesPerSecond;
+    }
+
+    /**
+     * Sets whether or not to pick servers with "power of two choices" 
+     * rather than always taking the top-ranked server.  We sample two 
+     * healthy servers at random and take the better of the two, which 
+     * keeps many processes with the same server list from all piling onto
+     * the same server while still steering clear of slow or lossy ones.
+     * 
+     * @param twoChoiceServerSelection Whether or not to sample two servers.
+     */
+    public static void setTwoChoiceServerSelection(
+        final boolean twoChoiceServerSelection) {
+        StunClientConfig.twoChoiceServerSelection = twoChoiceServerSelection;
+    }
+
+    /**
+     * Accessor for whether or not we pick servers with "power of two 
+     * choices".
+     * 
+     * @return <code>true</code> if we sample two servers and take the 
+     * better one.
+     */
+    public static boolean isTwoChoiceServerSelection() {
+        return twoChoiceServerSelection;
+    }
+}
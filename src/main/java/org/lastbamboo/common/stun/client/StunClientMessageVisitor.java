@@ -1,5 +1,7 @@
 package org.lastbamboo.common.stun.client;
 
+import java.net.InetSocketAddress;
+
 import org.littleshoot.stun.stack.message.BindingErrorResponse;
 import org.littleshoot.stun.stack.message.BindingSuccessResponse;
 import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
@@ -19,6 +21,9 @@ public class StunClientMessageVisitor<T> extends StunMessageVisitorAdapter<T> {
 
     private final Logger m_log = LoggerFactory.getLogger(getClass());
     protected final StunTransactionTracker<T> m_transactionTracker;
+    private final InetSocketAddress m_remoteAddress;
+    private final IcmpErrorListener m_icmpErrorListener;
+    private final StunResponseDispatcher m_dispatcher;
 
     /**
      * Creates a new STUN client message visitor.
@@ -28,7 +33,53 @@ public class StunClientMessageVisitor<T> extends StunMessageVisitorAdapter<T> {
      */
     public StunClientMessageVisitor(
             final StunTransactionTracker<T> transactionTracker) {
+        this(transactionTracker, null, null);
+    }
+
+    /**
+     * Creates a new STUN client message visitor that reports ICMP errors.
+     * 
+     * @param transactionTracker
+     *            The class that keeps track of transactions.
+     * @param remoteAddress
+     *            The remote address of the session we're visiting 
+     *            messages for.
+     * @param icmpErrorListener
+     *            The listener to notify of ICMP errors, or 
+     *            <code>null</code> for none.
+     */
+    public StunClientMessageVisitor(
+            final StunTransactionTracker<T> transactionTracker,
+            final InetSocketAddress remoteAddress,
+            final IcmpErrorListener icmpErrorListener) {
+        this(transactionTracker, remoteAddress, icmpErrorListener, null);
+    }
+
+    /**
+     * Creates a new STUN client message visitor that reports ICMP errors
+     * and hands responses straight to a dispatcher.
+     * 
+     * @param transactionTracker
+     *            The class that keeps track of transactions.
+     * @param remoteAddress
+     *            The remote address of the session we're visiting 
+     *            messages for.
+     * @param icmpErrorListener
+     *            The listener to notify of ICMP errors, or 
+     *            <code>null</code> for none.
+     * @param dispatcher
+     *            The class to give responses to before falling back to the
+     *            transaction tracker, or <code>null</code> for none.
+     */
+    public StunClientMessageVisitor(
+            final StunTransactionTracker<T> transactionTracker,
+            final InetSocketAddress remoteAddress,
+            final IcmpErrorListener icmpErrorListener,
+            final StunResponseDispatcher dispatcher) {
         m_transactionTracker = transactionTracker;
+        m_remoteAddress = remoteAddress;
+        m_icmpErrorListener = icmpErrorListener;
+        m_dispatcher = dispatcher;
     }
 
     @Override
@@ -36,6 +87,13 @@ public class StunClientMessageVisitor<T> extends StunMessageVisitorAdapter<T> {
         if (m_log.isDebugEnabled()) {
             m_log.debug("Received ICMP error: {}", message);
         }
+        
+        // ICMP errors generally won't match any transaction, so let the
+        // listener fail everything for the remote address right away
+        // rather than waiting for the transactions to time out.
+        if (m_icmpErrorListener != null && m_remoteAddress != null) {
+            m_icmpErrorListener.onIcmpError(m_remoteAddress, message);
+        }
         return notifyTransaction(message);
     }
 
@@ -56,6 +114,9 @@ public class StunClientMessageVisitor<T> extends StunMessageVisitorAdapter<T> {
     }
 
     private T notifyTransaction(final StunMessage response) {
+        if (m_dispatcher != null && m_dispatcher.dispatch(response, m_remoteAddress)) {
+            return null;
+        }
         final StunClientTransaction<T> ct = 
             this.m_transactionTracker.getClientTransaction(response);
         m_log.debug("Accessed transaction: {}", ct);
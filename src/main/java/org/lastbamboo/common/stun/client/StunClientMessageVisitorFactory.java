@@ -1,5 +1,7 @@
 package org.lastbamboo.common.stun.client;
 
+import java.net.InetSocketAddress;
+
 import org.littleshoot.mina.common.IoSession;
 import org.littleshoot.stun.stack.message.StunMessageVisitor;
 import org.littleshoot.stun.stack.message.StunMessageVisitorFactory;
@@ -16,6 +18,10 @@ public class StunClientMessageVisitorFactory<T> implements
 
     private final StunTransactionTracker<T> m_transactionTracker;
 
+    private final IcmpErrorListener m_icmpErrorListener;
+
+    private final StunResponseDispatcher m_dispatcher;
+
     /**
      * Creates a new message visitor factory for STUN clients.
      * 
@@ -25,11 +31,48 @@ public class StunClientMessageVisitorFactory<T> implements
     public StunClientMessageVisitorFactory(
         final StunTransactionTracker<T> transactionTracker)
         {
+        this(transactionTracker, null);
+        }
+
+    /**
+     * Creates a new message visitor factory for STUN clients.
+     * 
+     * @param transactionTracker The class that keeps track of STUN
+     * transactions.
+     * @param icmpErrorListener The listener to notify of ICMP errors, or
+     * <code>null</code> for none.
+     */
+    public StunClientMessageVisitorFactory(
+        final StunTransactionTracker<T> transactionTracker,
+        final IcmpErrorListener icmpErrorListener)
+        {
+        this(transactionTracker, icmpErrorListener, null);
+        }
+
+    /**
+     * Creates a new message visitor factory for STUN clients.
+     * 
+     * @param transactionTracker The class that keeps track of STUN
+     * transactions.
+     * @param icmpErrorListener The listener to notify of ICMP errors, or
+     * <code>null</code> for none.
+     * @param dispatcher The class to give responses to before falling back
+     * to the transaction tracker, or <code>null</code> for none.
+     */
+    public StunClientMessageVisitorFactory(
+        final StunTransactionTracker<T> transactionTracker,
+        final IcmpErrorListener icmpErrorListener,
+        final StunResponseDispatcher dispatcher)
+        {
         m_transactionTracker = transactionTracker;
+        m_icmpErrorListener = icmpErrorListener;
+        m_dispatcher = dispatcher;
         }
 
     public StunMessageVisitor<T> createVisitor(final IoSession session)
         {
-        return new StunClientMessageVisitor<T>(this.m_transactionTracker);
+        return new StunClientMessageVisitor<T>(this.m_transactionTracker,
+            (InetSocketAddress) session.getRemoteAddress(), 
+            this.m_icmpErrorListener, this.m_dispatcher);
         }
     }
@@ -0,0 +1,234 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * A single outstanding binding transaction.  This just tracks the
+ * request, how many times we've sent it, and the future for the eventual 
+ * response.  For UDP the retransmissions themselves are driven by 
+ * {@link RetransmissionSchedule}.  Transactions over reliable transports 
+ * are never marked as sent, so they don't feed the UDP RTT estimates.
+ */
+final class StunClientTransaction {
+
+    private final BindingRequest m_request;
+
+    private final InetSocketAddress m_remoteAddress;
+
+    private final byte[] m_id;
+
+    private final long m_highBits;
+
+    private final int m_lowBits;
+
+    private final int m_cookie;
+
+    private final CompletableFuture<StunMessage> m_future =
+        new CompletableFuture<StunMessage>();
+
+    private volatile int m_sends;
+
+    private volatile long m_firstSend;
+
+    private volatile long m_rtt = -1L;
+
+    private volatile boolean m_timedOut;
+
+    private volatile RetransmissionSchedule m_schedule;
+
+    StunClientTransaction(final BindingRequest request,
+        final InetSocketAddress remoteAddress) {
+        this.m_request = request;
+        this.m_remoteAddress = remoteAddress;
+        final byte[] id = request.getTransactionId().getRawBytes();
+        this.m_id = id;
+        this.m_highBits = TransactionIdTable.highBits(id);
+        this.m_lowBits = TransactionIdTable.lowBits(id);
+        this.m_cookie = ((id[0] & 0xFF) << 24) | ((id[1] & 0xFF) << 16) |
+            ((id[2] & 0xFF) << 8) | (id[3] & 0xFF);
+        
+        // However we finish, including callers cancelling the future, let 
+        // the schedule know so it can take itself off the timer.
+        this.m_future.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, 
+                final Throwable t) {
+                final RetransmissionSchedule schedule = m_schedule;
+                if (schedule != null) {
+                    schedule.onTransactionDone();
+                }
+            }
+        });
+    }
+
+    BindingRequest getRequest() {
+        return m_request;
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return m_remoteAddress;
+    }
+
+    /**
+     * Accessor for the raw transaction ID.  This is the transaction's own 
+     * copy, so callers must not modify it.
+     * 
+     * @return The raw 16 byte transaction ID.
+     */
+    byte[] getTransactionId() {
+        return m_id;
+    }
+
+    long getHighBits() {
+        return m_highBits;
+    }
+
+    int getLowBits() {
+        return m_lowBits;
+    }
+
+    /**
+     * Accessor for the first four bytes of the transaction ID, which are 
+     * the magic cookie for RFC 5389 requests.  These aren't part of the
+     * table key, so transports that match on the key alone should check 
+     * them too.
+     * 
+     * @return The first four bytes of the transaction ID.
+     */
+    int getCookie() {
+        return m_cookie;
+    }
+
+    int getSends() {
+        return m_sends;
+    }
+
+    /**
+     * Accessor for the round-trip time of the transaction.
+     * 
+     * @return The round-trip time in milliseconds, or -1 if the transaction
+     * hasn't completed with a response to its first request.
+     */
+    long getRtt() {
+        return m_rtt;
+    }
+
+    /**
+     * Whether or not the transaction timed out waiting for a response, as 
+     * opposed to being failed or given up on for other reasons.
+     * 
+     * @return <code>true</code> if the transaction timed out.
+     */
+    boolean isTimedOut() {
+        return m_timedOut;
+    }
+
+    void setSchedule(final RetransmissionSchedule schedule) {
+        this.m_schedule = schedule;
+    }
+
+    void onSent() {
+        if (m_sends == 0) {
+            m_firstSend = System.nanoTime();
+        }
+        m_sends++;
+    }
+
+    boolean isDone() {
+        return m_future.isDone();
+    }
+
+    /**
+     * Accessor for the future that completes with the response, or with a
+     * {@link NullStunMessage} if the transaction times out.  Note the 
+     * future completes on whichever thread delivered the response or the 
+     * timeout, so dependent stages should not block.
+     * 
+     * @return The future for the response.
+     */
+    CompletableFuture<StunMessage> getFuture() {
+        return m_future;
+    }
+
+    /**
+     * Completes the transaction with the specified response.  Only the first
+     * response counts -- any duplicates from retransmissions are ignored.
+     *
+     * @param response The response.
+     * @return <code>true</code> if this call completed the transaction.
+     */
+    boolean complete(final StunMessage response) {
+        // Grab the send count before completing since completion can trigger
+        // all sorts of dependent work.
+        final int sends = m_sends;
+        final long elapsed = System.nanoTime() - m_firstSend;
+        // Record the outcome before completing so anything waiting on the
+        // future sees it.
+        final boolean timedOut = response instanceof NullStunMessage;
+        if (timedOut) {
+            m_timedOut = sends > 0;
+        } else if (sends == 1) {
+            // Karn's algorithm -- we only take samples from transactions
+            // that didn't need a retransmission since we can't tell which
+            // request a later response was for.
+            m_rtt = elapsed / 1000000L;
+        }
+        if (!m_future.complete(response)) {
+            return false;
+        }
+        final RttEstimator estimator = RttTable.getEstimator(m_remoteAddress);
+        if (timedOut) {
+            if (sends > 0) {
+                estimator.onTimeout();
+            }
+        } else if (sends == 1) {
+            estimator.addSample(elapsed / 1000000L);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the transaction immediately with an error that didn't come from
+     * the server itself, such as an ICMP error.  This doesn't tell us
+     * anything about the server's round-trip time.
+     * 
+     * @param error The error message.
+     * @return <code>true</code> if this call completed the transaction.
+     */
+    boolean fail(final StunMessage error) {
+        return m_future.complete(error);
+    }
+
+    /**
+     * Gives up on the transaction without counting it against the server,
+     * completing it as if it had timed out.  We use this when we have to 
+     * drop transactions for our own reasons, such as a full table.
+     * 
+     * @return <code>true</code> if this call completed the transaction.
+     */
+    boolean abandon() {
+        return m_future.complete(new NullStunMessage());
+    }
+
+    /**
+     * Cancels the transaction without counting it against the server, 
+     * for example when the caller is interrupted.
+     * 
+     * @return <code>true</code> if this call completed the transaction.
+     */
+    boolean cancel() {
+        return m_future.cancel(false);
+    }
+
+    @Override
+    public String toString() {
+        return "StunClientTransaction [remote=" + m_remoteAddress +
+            " sends=" + m_sends + " done=" + isDone() + "]";
+    }
+}
@@ -0,0 +1,132 @@
+package org.lastbamboo.common.stun.client;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.mina.common.ExecutorThreadModel;
+import org.littleshoot.mina.common.IoFilterChain;
+import org.littleshoot.mina.common.ThreadModel;
+import org.littleshoot.mina.filter.executor.ExecutorFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Execution strategies for handling received messages and completing
+ * transactions.  Pass one of these, or any other {@link Executor}, to
+ * {@link StunClientConfig#setExecutor(Executor)}.
+ */
+public final class StunExecutors {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunExecutors.class);
+
+    /**
+     * Handles everything directly on the I/O thread.  This has the lowest
+     * latency, but anything that blocks in a response callback holds up
+     * every other client on the same I/O thread.  The clients themselves
+     * never wait on a connect from a callback, so failing over to a new
+     * server is safe here.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public String toString() {
+            return "DIRECT";
+        }
+    };
+
+    /**
+     * The most failovers we run at once.
+     */
+    private static final int FAILOVER_THREADS = 4;
+
+    /**
+     * Runs the follow-up work when a lookup has to move on to another
+     * server.  Transactions complete on the shared timer and I/O threads,
+     * which must never block, while picking and connecting to the next
+     * server sometimes can.  Failover is rare, so a few daemon threads are
+     * plenty.
+     */
+    static final Executor FAILOVER = newFailoverExecutor();
+
+    private StunExecutors() {}
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread.  On
+     * JVMs without virtual threads this falls back to a cached pool of
+     * daemon threads.
+     *
+     * @return The new executor.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Reflection so we still build and run on Java 8.
+            final Method factory = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (final Exception e) {
+            LOG.info("No virtual threads -- using a cached thread pool");
+            final AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r,
+                        "STUN-Executor-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    private static Executor newFailoverExecutor() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            FAILOVER_THREADS, FAILOVER_THREADS, 30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r,
+                        "STUN-Failover-" + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Returns the MINA thread model for the specified executor.
+     *
+     * @param executor The executor, or <code>null</code> for the pool
+     * shared by all UDP clients.
+     * @return The thread model.
+     */
+    static ThreadModel toThreadModel(final Executor executor) {
+        if (executor == null) {
+            return ExecutorThreadModel.getInstance(
+                UdpStunClient.class.getSimpleName());
+        }
+        if (executor == DIRECT) {
+            return ThreadModel.MANUAL;
+        }
+        return new ThreadModel() {
+            @Override
+            public void buildFilterChain(final IoFilterChain chain) {
+                chain.addFirst("threadPool", new ExecutorFilter(executor));
+            }
+        };
+    }
+}
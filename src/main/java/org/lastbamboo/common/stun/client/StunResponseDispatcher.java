@@ -0,0 +1,24 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Interface for classes that match responses to their own outstanding 
+ * transactions directly, without going through a 
+ * {@link org.littleshoot.stun.stack.transaction.StunTransactionTracker}.
+ */
+public interface StunResponseDispatcher {
+
+    /**
+     * Delivers a response to the transaction it belongs to.
+     * 
+     * @param response The response.
+     * @param source The address the response came from, or 
+     * <code>null</code> if unknown.
+     * @return <code>true</code> if the response matched a transaction, 
+     * otherwise <code>false</code>.
+     */
+    boolean dispatch(StunMessage response, InetSocketAddress source);
+}
@@ -0,0 +1,302 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Table of everything we've learned about each STUN server, shared across
+ * all clients in the process so that what one client learns about a server
+ * benefits the rest.  If {@link StunClientConfig#getServerHealthFile()} is
+ * set, we also save the table along with the RTT estimates for each server
+ * to a small binary file and load it again on startup, so the first
+ * lookups after a restart skip the servers we already knew were dead.
+ */
+public class StunServerHealth {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunServerHealth.class);
+
+    /**
+     * The maximum number of servers we share.  Callers can use arbitrary
+     * servers, so we don't want this to grow without bound.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    /**
+     * "STNH", to recognize our files.
+     */
+    private static final int MAGIC = 0x53544e48;
+
+    private static final int VERSION = 1;
+
+    private static final ConcurrentHashMap<InetSocketAddress, RankedStunServer>
+        servers = new ConcurrentHashMap<InetSocketAddress, RankedStunServer>();
+
+    /**
+     * Saved states for servers we haven't been asked for yet, keyed on
+     * {@link #key(InetSocketAddress)}.
+     */
+    private static final Map<String, RankedStunServer.State> saved =
+        new ConcurrentHashMap<String, RankedStunServer.State>();
+
+    private static File loadedFrom = null;
+
+    private static boolean shutdownHookAdded = false;
+
+    private StunServerHealth(){}
+
+    /**
+     * Returns the shared server for the specified address, resolving the
+     * address and creating the server if necessary.  If we saved what we
+     * knew about the server before the last restart, the new server starts
+     * out knowing it too.  Servers are shared by resolved address, so once
+     * a name's cached resolution expires and it resolves somewhere else, we
+     * start afresh with the new address.
+     *
+     * @param address The address of the server.
+     * @return A future that completes with the server, or exceptionally
+     * with a {@link DNSSECException} if DNSSEC verification of the address
+     * fails.
+     */
+    static CompletableFuture<RankedStunServer> getServerAsync(
+        final InetSocketAddress address) {
+        load();
+        return StunServerResolver.resolve(address).thenApply(
+            new Function<InetSocketAddress, RankedStunServer>() {
+                @Override
+                public RankedStunServer apply(
+                    final InetSocketAddress resolved) {
+                    return getResolvedServer(resolved);
+                }
+            });
+    }
+
+    /**
+     * Returns the shared server for the specified address, waiting for the
+     * address to resolve if necessary.
+     *
+     * @param address The address of the server.
+     * @return The server.
+     * @throws DNSSECException If DNSSEC verification of the address fails.
+     */
+    static RankedStunServer getServer(final InetSocketAddress address)
+        throws DNSSECException {
+        try {
+            return getServerAsync(address).join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof DNSSECException) {
+                throw (DNSSECException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static RankedStunServer getResolvedServer(
+        final InetSocketAddress address) {
+        final RankedStunServer existing = servers.get(address);
+        if (existing != null) {
+            return existing;
+        }
+        final RankedStunServer created = new RankedStunServer(address);
+        final RankedStunServer.State state = saved.remove(key(address));
+        if (state != null) {
+            created.restore(state);
+        }
+        if (servers.size() >= MAX_ENTRIES) {
+            // Just hand out a server we don't share.
+            return created;
+        }
+        final RankedStunServer raced = servers.putIfAbsent(address, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Loads saved server health from the configured file, unless we've
+     * already loaded that file.  This is cheap to call repeatedly.
+     */
+    public static void load() {
+        final File file = StunClientConfig.getServerHealthFile();
+        if (file == null) {
+            return;
+        }
+        synchronized (StunServerHealth.class) {
+            if (file.equals(loadedFrom)) {
+                return;
+            }
+            loadedFrom = file;
+            if (!shutdownHookAdded) {
+                shutdownHookAdded = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            save();
+                        }
+                    }, "STUN-Server-Health-Saver"));
+            }
+        }
+        try {
+            read(file);
+        } catch (final FileNotFoundException e) {
+            LOG.debug("No saved server health at {}", file);
+        } catch (final IOException e) {
+            // Not worth failing over -- we'll just learn it all again.
+            LOG.warn("Could not read server health from: " + file, e);
+        }
+    }
+
+    /**
+     * Saves server health to the configured file, if any.  We write to a
+     * temporary file first and rename it, so a crash part way through never
+     * leaves a corrupt file behind.  The temporary file is unique, so other
+     * processes saving to the same file can't trample on ours either.
+     */
+    public static synchronized void save() {
+        final File file = StunClientConfig.getServerHealthFile();
+        if (file == null) {
+            return;
+        }
+        final File temp;
+        try {
+            temp = Files.createTempFile(
+                file.getAbsoluteFile().getParentFile().toPath(),
+                file.getName(), ".tmp").toFile();
+        } catch (final IOException e) {
+            LOG.warn("Could not save server health to: " + file, e);
+            return;
+        }
+        try {
+            write(temp);
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Could not save server health to: " + file, e);
+            temp.delete();
+        }
+    }
+
+    /**
+     * Forgets everything we know about all servers, for testing.
+     */
+    static void clear() {
+        servers.clear();
+        saved.clear();
+        synchronized (StunServerHealth.class) {
+            loadedFrom = null;
+        }
+    }
+
+    private static void write(final File file) throws IOException {
+        final Collection<RankedStunServer> all =
+            new ArrayList<RankedStunServer>(servers.values());
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(all.size());
+            for (final RankedStunServer rss : all) {
+                final InetSocketAddress address = rss.getAddress();
+                out.writeUTF(key(address));
+                out.writeShort(address.getPort());
+                rss.getState().write(out);
+
+                // RTT estimates are keyed on where we actually send, which
+                // is the resolved address if there is one.
+                final InetAddress ia = address.getAddress();
+                if (ia == null) {
+                    out.writeByte(0);
+                } else {
+                    final byte[] bytes = ia.getAddress();
+                    out.writeByte(bytes.length);
+                    out.write(bytes);
+                    RttTable.getEstimator(address).write(out);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void read(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a server health file");
+            }
+            final int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException("Unknown version: " + version);
+            }
+            final int count = in.readInt();
+            final List<String> restored = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final int port = in.readUnsignedShort();
+                final RankedStunServer.State state =
+                    RankedStunServer.State.read(in);
+                final int length = in.readUnsignedByte();
+                if (length != 0) {
+                    final byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    RttTable.getEstimator(new InetSocketAddress(
+                        InetAddress.getByAddress(bytes), port)).read(in);
+                }
+                saved.put(key, state);
+                restored.add(key);
+            }
+
+            // Anyone who asked for a server before we got here gets its
+            // saved state too.
+            for (final RankedStunServer rss : servers.values()) {
+                final RankedStunServer.State state =
+                    saved.remove(key(rss.getAddress()));
+                if (state != null) {
+                    rss.restore(state);
+                }
+            }
+            LOG.debug("Loaded server health for {}", restored);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * We key saved state on the host as it was given to us and the port, so
+     * we can match it up again without resolving anything.
+     */
+    private static String key(final InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+}
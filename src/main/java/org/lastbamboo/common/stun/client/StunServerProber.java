@@ -0,0 +1,241 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional background prober that keeps checking on every STUN server we
+ * know about, so real lookups almost never have to be the first to find
+ * out a server has died.  Results go straight to the servers shared through
+ * {@link StunServerHealth}, so every client's ranking sees them.
+ * <p>
+ * We send at most {@link StunClientConfig#getMaxServerProbesPerSecond()}
+ * probes a second across all servers, and check on each server at most
+ * once every {@link StunClientConfig#getServerProbeInterval()}.  Servers
+ * that real lookups have heard from within that interval aren't probed at
+ * all.  Servers with open circuit breakers are only probed once their
+ * backoff expires, and then the probe decides whether to close the
+ * breaker.
+ */
+public class StunServerProber implements Runnable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunServerProber.class);
+
+    private final CandidateProvider<InetSocketAddress> m_servers;
+
+    /**
+     * Servers we're waiting to hear back from.  Probes run through the
+     * full retransmission schedule, so we need to make sure we don't probe
+     * the same server again in the meantime.
+     */
+    private final Set<RankedStunServer> m_inFlight =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<RankedStunServer, Boolean>());
+
+    private volatile boolean m_running;
+
+    private volatile Thread m_thread;
+
+    private NioStunClient m_client;
+
+    /**
+     * Creates a new prober for the servers in {@link StunServerRepository}.
+     */
+    public StunServerProber() {
+        this(new CandidateProvider<InetSocketAddress>() {
+            @Override
+            public Collection<InetSocketAddress> getCandidates() {
+                final Collection<InetSocketAddress> servers =
+                    StunServerRepository.getServers();
+                synchronized (servers) {
+                    return new ArrayList<InetSocketAddress>(servers);
+                }
+            }
+
+            @Override
+            public InetSocketAddress getCandidate() {
+                return getCandidates().iterator().next();
+            }
+        });
+    }
+
+    /**
+     * Creates a new prober for the specified servers.  We ask the provider
+     * for the servers again before each pass, so changes take effect.
+     *
+     * @param servers Class that provides the STUN servers to probe.
+     */
+    public StunServerProber(
+        final CandidateProvider<InetSocketAddress> servers) {
+        this.m_servers = servers;
+    }
+
+    /**
+     * Starts probing in the background.
+     */
+    public synchronized void start() {
+        if (this.m_running) {
+            return;
+        }
+        this.m_running = true;
+        final Thread thread = new Thread(this, "STUN-Server-Prober");
+        thread.setDaemon(true);
+        this.m_thread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops probing.  Any probes still in flight are abandoned.
+     */
+    public synchronized void stop() {
+        this.m_running = false;
+        final Thread thread = this.m_thread;
+        if (thread != null) {
+            thread.interrupt();
+            this.m_thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.m_running) {
+                sweep();
+
+                // Pace ourselves even when nothing was due.
+                Thread.sleep(spacing());
+            }
+        } catch (final InterruptedException e) {
+            LOG.debug("Prober interrupted");
+        } finally {
+            if (this.m_client != null) {
+                this.m_client.close();
+                this.m_client = null;
+            }
+            this.m_inFlight.clear();
+        }
+    }
+
+    /**
+     * Makes one pass over the servers, probing any that are due.
+     */
+    private void sweep() throws InterruptedException {
+        final Collection<InetSocketAddress> candidates =
+            this.m_servers.getCandidates();
+        final List<InetSocketAddress> resolved =
+            new ArrayList<InetSocketAddress>(candidates.size());
+        final List<RankedStunServer> servers =
+            new ArrayList<RankedStunServer>(candidates.size());
+        for (final InetSocketAddress isa : candidates) {
+            final CompletableFuture<RankedStunServer> future =
+                StunServerHealth.getServerAsync(isa);
+            if (!future.isDone()) {
+                // Still resolving, so we'll get to it next time.
+                continue;
+            }
+            final RankedStunServer rss;
+            try {
+                rss = future.join();
+            } catch (final CompletionException e) {
+                LOG.warn("DNSSEC verification error for: " + isa,
+                    e.getCause());
+                continue;
+            }
+
+            // We can't send to an unresolved address.
+            final InetSocketAddress address = rss.getAddress();
+            if (address.isUnresolved()) {
+                LOG.debug("Could not resolve: {}", address);
+                continue;
+            }
+            resolved.add(address);
+            servers.add(rss);
+        }
+        if (servers.isEmpty()) {
+            return;
+        }
+        if (this.m_client == null) {
+            try {
+                this.m_client = new NioStunClient(resolved);
+            } catch (final IOException e) {
+                LOG.warn("Could not create client", e);
+                return;
+            }
+        }
+
+        for (int i = 0; i < servers.size() && this.m_running; i++) {
+            final RankedStunServer rss = servers.get(i);
+            if (isDue(rss) && probe(rss, resolved.get(i))) {
+                Thread.sleep(spacing());
+            }
+        }
+    }
+
+    private boolean isDue(final RankedStunServer rss) {
+        if (this.m_inFlight.contains(rss)) {
+            return false;
+        }
+        if (rss.isOpen()) {
+            return rss.tryStartProbe();
+        }
+        return System.currentTimeMillis() - rss.getLastUpdate() >=
+            StunClientConfig.getServerProbeInterval();
+    }
+
+    /**
+     * Sends a binding request to the server, recording the outcome on the
+     * server once the transaction completes.
+     *
+     * @return <code>true</code> if we sent a probe.
+     */
+    private boolean probe(final RankedStunServer rss,
+        final InetSocketAddress address) {
+        LOG.debug("Probing: {}", rss);
+        final StunClientTransaction tx;
+        try {
+            tx = this.m_client.startTransactions(
+                Collections.singletonList(new BindingRequest()), address,
+                RttTable.getRto(address)).get(0);
+        } catch (final IOException e) {
+            // Our own problem rather than the server's, but we have to let
+            // go of the breaker's probe if we claimed it.
+            LOG.debug("Could not probe: " + rss, e);
+            rss.onProbeFailed();
+            return false;
+        }
+        this.m_inFlight.add(rss);
+        tx.getFuture().whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage response, final Throwable t) {
+                m_inFlight.remove(rss);
+                rss.onTransactionDone(tx, response, t);
+
+                // If we gave up without hearing either way, say on stop,
+                // don't leave the breaker waiting on us forever.
+                rss.onProbeFailed();
+            }
+        });
+        return true;
+    }
+
+    private static long spacing() {
+        return 1000L /
+            Math.max(1, StunClientConfig.getMaxServerProbesPerSecond());
+    }
+}
@@ -0,0 +1,278 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Ranks a set of STUN servers by the expected cost of asking each of them
+ * for a binding, so we favor the fastest server that reliably answers.
+ * Every transaction with one of the servers feeds the ranking.  Since
+ * scores change with time as well as with each transaction, we compute
+ * them when we pick a server rather than keeping the servers sorted.
+ * Servers whose circuit breakers are open are never picked.  Whenever we
+ * pick, we also kick off probes for any open breakers whose backoff has
+ * expired.
+ * <p>
+ * Many threads share one ranking, so nothing here ever locks.  The set of
+ * servers is a copy-on-write array, since servers are added rarely and
+ * picked constantly, and each server updates its own state atomically.
+ * Picking is a single pass over an array of a few servers, with each score
+ * computed from one consistent snapshot of that server's state.
+ */
+final class StunServerRanking {
+
+    /**
+     * Sends the single probe that decides whether to close a server's open
+     * breaker.
+     */
+    interface Prober {
+
+        /**
+         * Probes the server, reporting the outcome to the server.
+         *
+         * @param server The server to probe.
+         */
+        void probe(RankedStunServer server);
+    }
+
+    private final AtomicReference<RankedStunServer[]> m_servers =
+        new AtomicReference<RankedStunServer[]>(new RankedStunServer[0]);
+
+    private final ConcurrentMap<InetSocketAddress, RankedStunServer>
+        m_byAddress =
+        new ConcurrentHashMap<InetSocketAddress, RankedStunServer>();
+
+    private final Prober m_prober;
+
+    /**
+     * Creates a new ranking.
+     *
+     * @param prober The class for probing servers with open breakers.
+     */
+    StunServerRanking(final Prober prober) {
+        this.m_prober = prober;
+    }
+
+    /**
+     * Adds a server to the ranking, unless we're already ranking a server
+     * with the same address.
+     *
+     * @param server The server to add.
+     */
+    void add(final RankedStunServer server) {
+        if (m_byAddress.putIfAbsent(server.getAddress(), server) != null) {
+            return;
+        }
+        while (true) {
+            final RankedStunServer[] cur = m_servers.get();
+            final RankedStunServer[] next =
+                Arrays.copyOf(cur, cur.length + 1);
+            next[cur.length] = server;
+            if (m_servers.compareAndSet(cur, next)) {
+                return;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return m_servers.get().length == 0;
+    }
+
+    /**
+     * Returns the server with the specified address.
+     *
+     * @param address The address.
+     * @return The server, or <code>null</code> if we're not ranking a
+     * server with that address.
+     */
+    RankedStunServer get(final InetSocketAddress address) {
+        return m_byAddress.get(address);
+    }
+
+    /**
+     * Returns the number of servers of the specified family.
+     *
+     * @param family The family, or <code>null</code> for all servers.
+     * @return The number of servers.
+     */
+    int count(final Class<? extends InetAddress> family) {
+        int count = 0;
+        for (final RankedStunServer rss : m_servers.get()) {
+            if (rss.isFamily(family)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Picks a server of the specified family with a closed breaker.  This
+     * is normally the best server, but if we're configured for
+     * {@link StunClientConfig#isTwoChoiceServerSelection()} it's the better
+     * of two servers sampled at random.
+     *
+     * @param family The family, or <code>null</code> for any family.
+     * @return The server, or <code>null</code> if every server of that
+     * family is unavailable.
+     */
+    RankedStunServer pick(final Class<? extends InetAddress> family) {
+        if (StunClientConfig.isTwoChoiceServerSelection()) {
+            return pickOfTwo(family);
+        }
+        return pickOther(null, family);
+    }
+
+    /**
+     * Samples two servers of the specified family with closed breakers and
+     * picks the better of the two.  We sample both in a single pass with
+     * reservoir sampling, so every pair is equally likely.
+     */
+    private RankedStunServer pickOfTwo(
+        final Class<? extends InetAddress> family) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        RankedStunServer first = null;
+        RankedStunServer second = null;
+        int seen = 0;
+        for (final RankedStunServer rss : m_servers.get()) {
+            if (!isAvailable(rss, null, family)) {
+                continue;
+            }
+            seen++;
+            if (seen == 1) {
+                first = rss;
+            } else if (seen == 2) {
+                second = rss;
+            } else {
+                final int slot = random.nextInt(seen);
+                if (slot == 0) {
+                    first = rss;
+                } else if (slot == 1) {
+                    second = rss;
+                }
+            }
+        }
+        if (second == null) {
+            return first;
+        }
+        return first.getScore() <= second.getScore() ? first : second;
+    }
+
+    /**
+     * Picks the best server regardless of whether its breaker is open, for
+     * when we need some server to report even if they're all unavailable.
+     *
+     * @return The best server, or <code>null</code> if we have no servers.
+     */
+    RankedStunServer pickAny() {
+        RankedStunServer best = null;
+        double bestScore = 0.0;
+        for (final RankedStunServer rss : m_servers.get()) {
+            final double score = rss.getScore();
+            if (best == null || score < bestScore) {
+                best = rss;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Picks the best server of the specified family with a closed breaker
+     * other than the specified server.
+     *
+     * @param primary The server to skip, or <code>null</code> to consider
+     * all servers.
+     * @param family The family, or <code>null</code> for any family.
+     * @return The best other server, or <code>null</code> if there's no
+     * such server.
+     */
+    RankedStunServer pickOther(final RankedStunServer primary,
+        final Class<? extends InetAddress> family) {
+        RankedStunServer best = null;
+        double bestScore = 0.0;
+        for (final RankedStunServer rss : m_servers.get()) {
+            if (!isAvailable(rss, primary, family)) {
+                continue;
+            }
+            final double score = rss.getScore();
+            if (best == null || score < bestScore) {
+                best = rss;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Whether or not we can pick the specified server.  Along the way we
+     * probe the server if its breaker is open and its backoff has expired.
+     */
+    private boolean isAvailable(final RankedStunServer rss,
+        final RankedStunServer primary,
+        final Class<? extends InetAddress> family) {
+        if (rss.isOpen()) {
+            // Only one thread ever wins the probe.
+            if (rss.tryStartProbe()) {
+                m_prober.probe(rss);
+            }
+            return false;
+        }
+        return rss != primary && rss.isFamily(family);
+    }
+
+    /**
+     * Records the outcome of a transaction, if it was with one of our
+     * servers.
+     *
+     * @param tx The transaction.
+     * @param response The response the transaction completed with.
+     * @param t The exception the transaction completed with, if any.
+     */
+    void onTransactionDone(final StunClientTransaction tx,
+        final StunMessage response, final Throwable t) {
+        final RankedStunServer rss = get(tx.getRemoteAddress());
+        if (rss != null) {
+            rss.onTransactionDone(tx, response, t);
+        }
+    }
+
+    /**
+     * Returns the scores of all our servers, best first.
+     *
+     * @return The expected cost in milliseconds of asking each server for
+     * a binding, keyed on the server's address.
+     */
+    Map<InetSocketAddress, Double> getScores() {
+        final RankedStunServer[] servers = m_servers.get().clone();
+
+        // Take each score once up front since they keep changing.
+        final Map<RankedStunServer, Double> scores =
+            new LinkedHashMap<RankedStunServer, Double>();
+        for (final RankedStunServer rss : servers) {
+            scores.put(rss, rss.getScore());
+        }
+        Arrays.sort(servers, new Comparator<RankedStunServer>() {
+            @Override
+            public int compare(final RankedStunServer rss1,
+                final RankedStunServer rss2) {
+                return scores.get(rss1).compareTo(scores.get(rss2));
+            }
+        });
+        final Map<InetSocketAddress, Double> sorted =
+            new LinkedHashMap<InetSocketAddress, Double>();
+        for (final RankedStunServer rss : servers) {
+            sorted.put(rss.getAddress(), scores.get(rss));
+        }
+        return sorted;
+    }
+}
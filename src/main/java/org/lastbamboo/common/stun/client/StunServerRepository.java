@@ -14,6 +14,12 @@ public class StunServerRepository {
     private static Collection<InetSocketAddress> servers = 
         new HashSet<InetSocketAddress>(StunConstants.SERVERS);
     
+    static {
+        // Get what we learned about the servers before the last restart
+        // ready before anyone asks for them.
+        StunServerHealth.load();
+    }
+    
     public static void setStunServers(
         final Collection<InetSocketAddress> ss) {
         if (!ss.isEmpty()) {
@@ -0,0 +1,227 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.Security;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.littleshoot.dnssec4j.DNSSECException;
+import org.littleshoot.dnssec4j.DnsSec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves STUN server names, verifying them with DNSSEC if we're
+ * configured to, off the caller's thread and in parallel.  Results are
+ * cached across all clients in the process for as long as the JVM's own
+ * DNS cache policy says, so only the first client to ask for a server ever
+ * waits on DNS.  We don't see the TTLs of the records themselves, so the
+ * <code>networkaddress.cache.ttl</code> and
+ * <code>networkaddress.cache.negative.ttl</code> security properties are
+ * the closest thing we have.
+ */
+final class StunServerResolver {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(StunServerResolver.class);
+
+    /**
+     * How long we cache answers by default, the same as the JVM.
+     */
+    private static final long DEFAULT_TTL = 30 * 1000L;
+
+    /**
+     * How long we cache failures by default, the same as the JVM.
+     */
+    private static final long DEFAULT_NEGATIVE_TTL = 10 * 1000L;
+
+    /**
+     * The most names we resolve at once.
+     */
+    private static final int THREADS = 8;
+
+    /**
+     * The maximum number of names we cache.  Callers can use arbitrary
+     * servers, so we don't want this to grow without bound.
+     */
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final ConcurrentHashMap<InetSocketAddress, Entry> cache =
+        new ConcurrentHashMap<InetSocketAddress, Entry>();
+
+    private static final ThreadPoolExecutor executor = newExecutor();
+
+    private StunServerResolver(){}
+
+    /**
+     * Resolves the specified address.  If it's already resolved we just
+     * hand it back.
+     *
+     * @param address The address to resolve.
+     * @return A future that completes with the resolved address, with the
+     * original unresolved address if we couldn't resolve it, or
+     * exceptionally with a {@link DNSSECException} if DNSSEC verification
+     * failed.
+     */
+    static CompletableFuture<InetSocketAddress> resolve(
+        final InetSocketAddress address) {
+        if (!address.isUnresolved()) {
+            return CompletableFuture.completedFuture(address);
+        }
+        while (true) {
+            final Entry existing = cache.get(address);
+            if (existing != null &&
+                System.currentTimeMillis() < existing.m_expires) {
+                return existing.m_future;
+            }
+            final Entry entry = new Entry();
+            final boolean won;
+            if (existing == null) {
+                if (cache.size() >= MAX_ENTRIES) {
+                    pruneExpired();
+                    if (cache.size() >= MAX_ENTRIES) {
+                        // Still full -- just resolve without caching.
+                        executor.execute(new Resolution(address, entry));
+                        return entry.m_future;
+                    }
+                }
+                won = cache.putIfAbsent(address, entry) == null;
+            } else {
+                won = cache.replace(address, existing, entry);
+            }
+            if (won) {
+                executor.execute(new Resolution(address, entry));
+                return entry.m_future;
+            }
+        }
+    }
+
+    /**
+     * Forgets everything we've resolved, for testing.
+     */
+    static void clear() {
+        cache.clear();
+    }
+
+    private static void pruneExpired() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Entry> iter = cache.values().iterator();
+        while (iter.hasNext()) {
+            if (now >= iter.next().m_expires) {
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads one of the JVM's DNS cache policies.
+     *
+     * @return The TTL in milliseconds, or {@link Long#MAX_VALUE} to cache
+     * forever.
+     */
+    private static long ttl(final String property, final long defaultTtl) {
+        final String value = Security.getProperty(property);
+        if (value == null) {
+            return defaultTtl;
+        }
+        try {
+            final long seconds = Long.parseLong(value.trim());
+            return seconds < 0L ? Long.MAX_VALUE : seconds * 1000L;
+        } catch (final NumberFormatException e) {
+            LOG.warn("Bad value for {}: {}", property, value);
+            return defaultTtl;
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(THREADS,
+            THREADS, 30L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger m_count = new AtomicInteger();
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r,
+                        "STUN-Server-Resolver-" + m_count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * A cached resolution.  It never expires while it's still in flight, so
+     * everyone asking in the meantime shares it.
+     */
+    private static final class Entry {
+
+        private final CompletableFuture<InetSocketAddress> m_future =
+            new CompletableFuture<InetSocketAddress>();
+
+        private volatile long m_expires = Long.MAX_VALUE;
+
+        private void complete(final InetSocketAddress resolved,
+            final Throwable t) {
+            final long ttl = resolved == null || resolved.isUnresolved() ?
+                ttl("networkaddress.cache.negative.ttl",
+                    DEFAULT_NEGATIVE_TTL) :
+                ttl("networkaddress.cache.ttl", DEFAULT_TTL);
+            final long now = System.currentTimeMillis();
+            m_expires = ttl > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttl;
+            if (t == null) {
+                m_future.complete(resolved);
+            } else {
+                m_future.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static final class Resolution implements Runnable {
+
+        private final InetSocketAddress m_address;
+
+        private final Entry m_entry;
+
+        private Resolution(final InetSocketAddress address,
+            final Entry entry) {
+            this.m_address = address;
+            this.m_entry = entry;
+        }
+
+        @Override
+        public void run() {
+            if (StunClientConfig.isUseDnsSec()) {
+                try {
+                    m_entry.complete(DnsSec.verify(m_address), null);
+                    return;
+                } catch (final DNSSECException e) {
+                    m_entry.complete(null, e);
+                    return;
+                } catch (final IOException e) {
+                    // We couldn't get signed records at all, which doesn't
+                    // mean anything's wrong with the plain ones.
+                    LOG.debug("Could not verify: " + m_address, e);
+                } catch (final RuntimeException e) {
+                    m_entry.complete(null, e);
+                    return;
+                }
+            }
+            final InetSocketAddress resolved = new InetSocketAddress(
+                m_address.getHostName(), m_address.getPort());
+            if (resolved.isUnresolved()) {
+                LOG.debug("Could not resolve: {}", m_address);
+                m_entry.complete(m_address, null);
+            } else {
+                m_entry.complete(resolved, null);
+            }
+        }
+    }
+}
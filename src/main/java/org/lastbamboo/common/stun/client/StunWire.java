@@ -0,0 +1,206 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Low level helpers for reading and writing the handful of STUN messages
+ * the raw NIO transport deals with, directly on NIO buffers.  All reads use
+ * absolute positions relative to the start of the datagram so callers can
+ * keep reusing the same buffer.
+ */
+final class StunWire {
+
+    static final int HEADER_LENGTH = 20;
+
+    static final int BINDING_REQUEST = 0x0001;
+
+    static final int BINDING_SUCCESS_RESPONSE = 0x0101;
+
+    static final int BINDING_ERROR_RESPONSE = 0x0111;
+
+    static final int MAPPED_ADDRESS = 0x0001;
+
+    static final int ERROR_CODE = 0x0009;
+
+    static final int XOR_MAPPED_ADDRESS = 0x0020;
+
+    /**
+     * XOR-MAPPED-ADDRESS as it was numbered in the early RFC 3489bis drafts.
+     * Some older servers still send it.
+     */
+    static final int XOR_MAPPED_ADDRESS_OLD = 0x8020;
+
+    static final int MAGIC_COOKIE = 0x2112A442;
+
+    private static final int FAMILY_IPV4 = 0x01;
+
+    private static final int FAMILY_IPV6 = 0x02;
+
+    private StunWire() {}
+
+    /**
+     * Returns the message type of the datagram, or -1 if it's too short to
+     * be a STUN message.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @return The message type.
+     */
+    static int getType(final ByteBuffer datagram) {
+        if (datagram.limit() < HEADER_LENGTH) {
+            return -1;
+        }
+        return datagram.getShort(0) & 0xFFFF;
+    }
+
+    /**
+     * Returns the high 64 bits of the transaction ID key.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @return The high bits of the transaction ID key.
+     * @see TransactionIdTable#highBits(byte[])
+     */
+    static long getTransactionHighBits(final ByteBuffer datagram) {
+        return datagram.getLong(8);
+    }
+
+    /**
+     * Returns the low 32 bits of the transaction ID key.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @return The low bits of the transaction ID key.
+     * @see TransactionIdTable#lowBits(byte[])
+     */
+    static int getTransactionLowBits(final ByteBuffer datagram) {
+        return datagram.getInt(16);
+    }
+
+    /**
+     * Returns the magic cookie field of the datagram.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @return The magic cookie field.
+     */
+    static int getCookie(final ByteBuffer datagram) {
+        return datagram.getInt(4);
+    }
+
+    /**
+     * Returns the position of the value of the first attribute of the
+     * specified type, or -1 if there's no such attribute.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @param type The attribute type.
+     * @return The position of the attribute value.
+     */
+    static int findAttribute(final ByteBuffer datagram, final int type) {
+        final int end = Math.min(datagram.limit(),
+            HEADER_LENGTH + (datagram.getShort(2) & 0xFFFF));
+        int pos = HEADER_LENGTH;
+        while (pos + 4 <= end) {
+            final int attrType = datagram.getShort(pos) & 0xFFFF;
+            final int attrLength = datagram.getShort(pos + 2) & 0xFFFF;
+            if (pos + 4 + attrLength > end) {
+                return -1;
+            }
+            if (attrType == type) {
+                return pos + 4;
+            }
+            // Attributes are padded to 4 byte boundaries.
+            pos += 4 + ((attrLength + 3) & ~3);
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the mapped address from a binding response, preferring
+     * XOR-MAPPED-ADDRESS over MAPPED-ADDRESS.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @return The mapped address, or <code>null</code> if there isn't one.
+     */
+    static InetSocketAddress readMappedAddress(final ByteBuffer datagram) {
+        int pos = findAttribute(datagram, XOR_MAPPED_ADDRESS);
+        if (pos < 0) {
+            pos = findAttribute(datagram, XOR_MAPPED_ADDRESS_OLD);
+        }
+        if (pos >= 0) {
+            return readAddress(datagram, pos, attributeLength(datagram, pos),
+                true);
+        }
+        pos = findAttribute(datagram, MAPPED_ADDRESS);
+        if (pos >= 0) {
+            return readAddress(datagram, pos, attributeLength(datagram, pos),
+                false);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the error code from a binding error response.
+     *
+     * @param datagram The datagram, starting at position 0.
+     * @return The error code, or -1 if there isn't one.
+     */
+    static int readErrorCode(final ByteBuffer datagram) {
+        final int pos = findAttribute(datagram, ERROR_CODE);
+        if (pos < 0 || attributeLength(datagram, pos) < 4) {
+            return -1;
+        }
+        return (datagram.get(pos + 2) & 0x07) * 100 +
+            (datagram.get(pos + 3) & 0xFF);
+    }
+
+    /**
+     * Returns the length of the attribute whose value starts at the
+     * specified position, as found by
+     * {@link #findAttribute(ByteBuffer, int)}.
+     */
+    private static int attributeLength(final ByteBuffer datagram,
+        final int pos) {
+        return datagram.getShort(pos - 2) & 0xFFFF;
+    }
+
+    private static InetSocketAddress readAddress(final ByteBuffer datagram,
+        final int pos, final int attrLength, final boolean xor) {
+        if (attrLength < 4) {
+            return null;
+        }
+        final int family = datagram.get(pos + 1) & 0xFF;
+        int port = datagram.getShort(pos + 2) & 0xFFFF;
+        final byte[] address;
+        if (family == FAMILY_IPV4) {
+            address = new byte[4];
+        } else if (family == FAMILY_IPV6) {
+            address = new byte[16];
+        } else {
+            return null;
+        }
+        if (attrLength < 4 + address.length) {
+            // The attribute's too short for its own family.  Reading on 
+            // would take bytes from whatever follows it.
+            return null;
+        }
+        for (int i = 0; i < address.length; i++) {
+            address[i] = datagram.get(pos + 4 + i);
+        }
+        if (xor) {
+            port ^= (MAGIC_COOKIE >>> 16);
+
+            // The address is XORed with the magic cookie followed by the
+            // transaction ID, which is exactly bytes 4 onwards of the header.
+            for (int i = 0; i < address.length; i++) {
+                address[i] ^= datagram.get(4 + i);
+            }
+        }
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(address),
+                port);
+        } catch (final UnknownHostException e) {
+            // Can't happen with a 4 or 16 byte address.
+            return null;
+        }
+    }
+}
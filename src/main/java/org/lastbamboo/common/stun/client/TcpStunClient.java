@@ -0,0 +1,192 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.StunMessage;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * STUN client that talks to servers over TCP, for networks that block UDP
+ * outright.  We keep one persistent connection open to each server and
+ * pipeline requests over it, so only the first request to a server pays
+ * for the TCP handshake.  TCP takes care of delivery, so there are no
+ * retransmissions -- each transaction just times out after
+ * {@link StunClientConfig#getTcpTransactionTimeout()}.  Like
+ * {@link NioStunClient}, this only deals in binding requests.
+ * <p>
+ * Note the server reflexive address we get back is the mapping for our TCP
+ * connection, which a NAT will typically assign independently of any UDP
+ * mappings.
+ */
+public class TcpStunClient extends AbstractRawStunClient {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TcpStunClient.class);
+
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+    private final ConcurrentMap<InetSocketAddress, TcpStunConnection>
+        m_connections =
+        new ConcurrentHashMap<InetSocketAddress, TcpStunConnection>();
+
+    private volatile boolean m_closed;
+
+    /**
+     * Creates a new STUN client that connects to the specified STUN servers.
+     *
+     * @param stunServerCandidateProvider Class that provides STUN servers to
+     * use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public TcpStunClient(
+        final CandidateProvider<InetSocketAddress> stunServerCandidateProvider)
+            throws IOException {
+        this(null, stunServerCandidateProvider.getCandidates());
+    }
+
+    /**
+     * Creates a new STUN client that connects to the specified STUN servers.
+     *
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public TcpStunClient(final InetSocketAddress... stunServers)
+        throws IOException {
+        this(null, Arrays.asList(stunServers));
+    }
+
+    /**
+     * Creates a new STUN client that connects to the specified STUN servers.
+     *
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public TcpStunClient(final Collection<InetSocketAddress> stunServers)
+        throws IOException {
+        this(null, stunServers);
+    }
+
+    /**
+     * Creates a new STUN client bound to the specified local address.
+     *
+     * @param localAddress The local address to bind to, or
+     * <code>null</code> for an ephemeral port on all interfaces.  Binding
+     * to a specific port only makes sense with a single server.
+     * @param stunServers The STUN servers to use.
+     * @throws IOException If we can't get a STUN server address.
+     */
+    public TcpStunClient(final InetSocketAddress localAddress,
+        final Collection<InetSocketAddress> stunServers) throws IOException {
+        super(localAddress, stunServers);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        connection(getStunServer());
+    }
+
+    /**
+     * Returns our connection to the specified server, starting a new one if
+     * we don't have one or the last one closed.  This never waits for the
+     * TCP handshake -- requests just queue up on the connection until it's
+     * connected.
+     */
+    private TcpStunConnection connection(final InetSocketAddress server)
+        throws IOException {
+        final TcpStunConnection existing = this.m_connections.get(server);
+        if (existing != null && !existing.isClosed()) {
+            return existing;
+        }
+        final TcpStunConnection conn;
+        synchronized (this.m_connections) {
+            if (this.m_closed) {
+                throw new IOException("Client closed");
+            }
+            final TcpStunConnection current = this.m_connections.get(server);
+            if (current != null && !current.isClosed()) {
+                return current;
+            }
+            conn = new TcpStunConnection(server,
+                this.m_originalLocalAddress, CONNECT_TIMEOUT,
+                this.m_pendingTransactions, this.m_responseHandler,
+                this.m_template);
+            this.m_connections.put(server, conn);
+        }
+
+        // Everyone else asking for this server gets the connection we just
+        // put in the map, so there's no need to hold the lock while we
+        // start connecting.
+        conn.connect();
+        return conn;
+    }
+
+    /**
+     * Registers transactions for all the specified requests and writes them
+     * all on the server's connection.  The RTO doesn't apply over TCP.
+     */
+    @Override
+    List<StunClientTransaction> startTransactions(
+        final Collection<BindingRequest> requests,
+        final InetSocketAddress remoteAddress, final long rto)
+        throws IOException {
+        final TcpStunConnection conn = connection(remoteAddress);
+        final List<StunClientTransaction> txs =
+            newTransactions(requests, remoteAddress);
+        final long timeout = StunClientConfig.getTcpTransactionTimeout();
+        for (final StunClientTransaction tx : txs) {
+            final HashedTimerWheel.Timeout timer =
+                RetransmissionSchedule.TIMER.schedule(
+                    new HashedTimerWheel.TimerTask() {
+                    @Override
+                    public void run(final HashedTimerWheel.Timeout t) {
+                        if (tx.abandon()) {
+                            LOG.debug("Timed out waiting for {}",
+                                remoteAddress);
+                        }
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            tx.getFuture().whenComplete(
+                new BiConsumer<StunMessage, Throwable>() {
+                @Override
+                public void accept(final StunMessage response,
+                    final Throwable t) {
+                    timer.cancel();
+                }
+            });
+
+            // We deliberately never mark the transaction as sent, since
+            // round trips over TCP say nothing about UDP RTOs.
+            conn.send(tx);
+        }
+        return txs;
+    }
+
+    public InetSocketAddress getHostAddress() {
+        // Every connection has its own local port, so there's no single
+        // host address unless we were told to bind to one.
+        return this.m_originalLocalAddress;
+    }
+
+    public void close() {
+        synchronized (this.m_connections) {
+            this.m_closed = true;
+        }
+        for (final TcpStunConnection conn : this.m_connections.values()) {
+            LOG.info("Closing connection: {}", conn);
+            conn.close();
+        }
+        this.m_connections.clear();
+        abandonTransactions();
+    }
+}
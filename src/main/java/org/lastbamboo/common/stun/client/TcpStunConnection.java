@@ -0,0 +1,398 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent TCP connection to a single STUN server.  Any number of
+ * binding requests can be outstanding on the connection at once -- STUN
+ * messages carry their own length, so we just write requests back to back
+ * and pick responses out of the stream as they arrive, in whatever order
+ * the server answers them.
+ */
+final class TcpStunConnection implements NioSelectorLoop.StreamHandler {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TcpStunConnection.class);
+
+    /**
+     * Larger than any binding response we'd ever expect.
+     */
+    private static final int READ_BUFFER_SIZE = 2048;
+
+    private static final int WRITE_BUFFER_SIZE = 8192;
+
+    /**
+     * The most we'll queue for a server that isn't reading.  Past this we
+     * fail new requests rather than buffer without bound.
+     */
+    private static final int MAX_WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress m_remoteAddress;
+
+    private final SocketChannel m_channel;
+
+    private final NioSelectorLoop m_loop;
+
+    private final TransactionTable m_transactions;
+
+    private final RawResponseHandler m_responseHandler;
+
+    private final BindingRequestTemplate m_template;
+
+    private final int m_connectTimeout;
+
+    /**
+     * Only touched on the selector thread.
+     */
+    private final ByteBuffer m_readBuffer =
+        ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private final BindingResponseView m_view = new BindingResponseView();
+
+    /**
+     * Requests waiting to be written, in write mode.  Guarded by this.
+     */
+    private ByteBuffer m_writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+    /**
+     * Whether we've asked the selector to tell us when we can write.
+     * Guarded by this.
+     */
+    private boolean m_wantWrite;
+
+    /**
+     * Whether the TCP handshake has finished.  Guarded by this.
+     */
+    private boolean m_connected;
+
+    private volatile HashedTimerWheel.Timeout m_connectTimer;
+
+    private volatile boolean m_closed;
+
+    /**
+     * Creates a connection to the server.  Nothing goes over the wire until
+     * we call {@link #connect()}.
+     *
+     * @param remoteAddress The server's address.
+     * @param localAddress The local address to bind to, or
+     * <code>null</code> for an ephemeral port.
+     * @param connectTimeout How long to wait for the connection, in
+     * milliseconds.
+     * @param transactions The client's outstanding transactions.
+     * @param responseHandler Completes transactions when their responses
+     * arrive.
+     * @param template The template for encoding requests.
+     * @throws IOException If we can't open or bind the socket.
+     */
+    TcpStunConnection(final InetSocketAddress remoteAddress,
+        final InetSocketAddress localAddress, final int connectTimeout,
+        final TransactionTable transactions,
+        final RawResponseHandler responseHandler,
+        final BindingRequestTemplate template) throws IOException {
+        this.m_remoteAddress = remoteAddress;
+        this.m_transactions = transactions;
+        this.m_responseHandler = responseHandler;
+        this.m_template = template;
+        this.m_connectTimeout = connectTimeout;
+        this.m_loop = NioSelectorLoop.getInstance();
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            if (localAddress != null) {
+                channel.socket().bind(localAddress);
+            }
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.m_channel = channel;
+    }
+
+    /**
+     * Starts connecting to the server.  This never waits for the TCP
+     * handshake, since we're often called from transaction callbacks
+     * running on the selector or timer threads.  Requests sent in the
+     * meantime are written as soon as we're connected, and if we haven't
+     * connected within the timeout we close, failing them all.
+     *
+     * @throws IOException If we can't start connecting.
+     */
+    void connect() throws IOException {
+        if (m_remoteAddress.isUnresolved()) {
+            close();
+            throw new IOException("Unresolved address: " + m_remoteAddress);
+        }
+        m_connectTimer = RetransmissionSchedule.TIMER.schedule(
+            new HashedTimerWheel.TimerTask() {
+            @Override
+            public void run(final HashedTimerWheel.Timeout timeout) {
+                final boolean connected;
+                synchronized (TcpStunConnection.this) {
+                    connected = m_connected;
+                }
+                if (!connected && !m_closed) {
+                    LOG.info("Timed out connecting to: {}", m_remoteAddress);
+                    close();
+                }
+            }
+        }, m_connectTimeout, TimeUnit.MILLISECONDS);
+        final boolean connected;
+        try {
+            connected = m_channel.connect(m_remoteAddress);
+        } catch (final IOException e) {
+            close();
+            throw e;
+        }
+        if (connected) {
+            m_loop.register(m_channel, SelectionKey.OP_READ, this);
+            onConnected();
+        } else {
+            m_loop.register(m_channel, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /**
+     * Finishes connecting once the selector tells us the handshake is
+     * done.  Called on the selector thread.
+     */
+    private void finishConnect(final SelectionKey key) {
+        try {
+            if (!m_channel.finishConnect()) {
+                return;
+            }
+        } catch (final IOException e) {
+            LOG.info("Could not connect to: " + m_remoteAddress, e);
+            close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        onConnected();
+    }
+
+    /**
+     * Writes out everything sent while we were connecting.
+     */
+    private void onConnected() {
+        LOG.debug("Connected to: {}", m_remoteAddress);
+        m_connectTimer.cancel();
+        final boolean flushed;
+        synchronized (this) {
+            m_connected = true;
+            flushed = !m_closed && flush();
+        }
+        if (!flushed) {
+            failOutstanding();
+        }
+    }
+
+    /**
+     * Writes the transaction's request, or fails it if the connection has
+     * closed.
+     *
+     * @param tx The transaction.
+     */
+    void send(final StunClientTransaction tx) {
+        final boolean closed;
+        synchronized (this) {
+            if (!m_closed) {
+                if (m_writeBuffer.remaining() >= m_template.getLength() ||
+                    grow()) {
+                    m_template.encode(m_writeBuffer, tx.getTransactionId());
+                    if (flush()) {
+                        return;
+                    }
+                } else {
+                    LOG.warn("Too many requests waiting for: {}", 
+                        m_remoteAddress);
+                }
+            }
+            closed = m_closed;
+        }
+        if (closed) {
+            failOutstanding();
+        }
+        tx.fail(new NullStunMessage());
+    }
+
+    /**
+     * Writes as much as we can without blocking, asking the selector to
+     * tell us when we can write the rest.  Must hold the lock.
+     *
+     * @return <code>false</code> if the connection failed.
+     */
+    private boolean flush() {
+        if (!m_connected) {
+            // We'll write everything once we're connected.
+            return true;
+        }
+        m_writeBuffer.flip();
+        try {
+            m_channel.write(m_writeBuffer);
+        } catch (final IOException e) {
+            LOG.info("Error writing to: " + m_remoteAddress, e);
+            closeChannel();
+            return false;
+        } finally {
+            m_writeBuffer.compact();
+        }
+        // Only bother the selector when we need to start or stop waiting
+        // for the socket to drain, which is almost never.
+        final boolean wantWrite = m_writeBuffer.position() > 0;
+        if (wantWrite != m_wantWrite) {
+            m_wantWrite = wantWrite;
+            m_loop.setInterest(m_channel, wantWrite ?
+                SelectionKey.OP_READ | SelectionKey.OP_WRITE :
+                SelectionKey.OP_READ);
+        }
+        return true;
+    }
+
+    /**
+     * Doubles the write buffer.  Must hold the lock.
+     *
+     * @return <code>false</code> if the buffer's already as large as we
+     * allow.
+     */
+    private boolean grow() {
+        final int capacity = m_writeBuffer.capacity() * 2;
+        if (capacity > MAX_WRITE_BUFFER_SIZE) {
+            return false;
+        }
+        final ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        m_writeBuffer.flip();
+        bigger.put(m_writeBuffer);
+        m_writeBuffer = bigger;
+        return true;
+    }
+
+    @Override
+    public void onReady(final SelectionKey key) {
+        if (key.isConnectable()) {
+            finishConnect(key);
+            return;
+        }
+        if (key.isWritable()) {
+            final boolean flushed;
+            synchronized (this) {
+                flushed = !m_closed && flush();
+            }
+            if (!flushed) {
+                failOutstanding();
+                return;
+            }
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+    }
+
+    private void read() {
+        final int read;
+        try {
+            read = m_channel.read(m_readBuffer);
+        } catch (final IOException e) {
+            LOG.info("Error reading from: " + m_remoteAddress, e);
+            close();
+            return;
+        }
+        if (read < 0) {
+            LOG.debug("Server closed connection: {}", m_remoteAddress);
+            close();
+            return;
+        }
+
+        // Pick out every complete message, leaving any partial message at
+        // the start of the buffer for the next read.
+        m_readBuffer.flip();
+        while (m_readBuffer.remaining() >= StunWire.HEADER_LENGTH) {
+            final int start = m_readBuffer.position();
+            final int length = StunWire.HEADER_LENGTH +
+                (m_readBuffer.getShort(start + 2) & 0xFFFF);
+            if (length > m_readBuffer.capacity()) {
+                LOG.warn("Message too long from {}: {}", m_remoteAddress,
+                    length);
+                close();
+                return;
+            }
+            if (m_readBuffer.remaining() < length) {
+                break;
+            }
+            final int limit = m_readBuffer.limit();
+            m_readBuffer.limit(start + length);
+            try {
+                m_responseHandler.onResponse(m_view.wrap(m_readBuffer),
+                    m_remoteAddress);
+            } finally {
+                m_view.clear();
+                m_readBuffer.limit(limit);
+                m_readBuffer.position(start + length);
+            }
+        }
+        m_readBuffer.compact();
+    }
+
+    /**
+     * Whether or not the connection has closed.
+     *
+     * @return <code>true</code> if the connection has closed.
+     */
+    boolean isClosed() {
+        return m_closed;
+    }
+
+    /**
+     * Closes the connection, failing everything still outstanding on it.
+     */
+    void close() {
+        synchronized (this) {
+            if (m_closed) {
+                return;
+            }
+            closeChannel();
+        }
+        failOutstanding();
+    }
+
+    /**
+     * Closes the channel.  Must hold the lock.
+     */
+    private void closeChannel() {
+        m_closed = true;
+        m_loop.unregister(m_channel);
+        try {
+            m_channel.close();
+        } catch (final IOException e) {
+            LOG.debug("Error closing channel", e);
+        }
+    }
+
+    /**
+     * Fails everything outstanding with our server.  We'll never get
+     * answers for anything we've sent on this connection now.  We do this
+     * without holding the lock since failing transactions runs their
+     * callbacks.
+     */
+    private void failOutstanding() {
+        for (final StunClientTransaction tx :
+            m_transactions.getTransactions(m_remoteAddress)) {
+            tx.fail(new NullStunMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TcpStunConnection [remote=" + m_remoteAddress +
+            " closed=" + m_closed + "]";
+    }
+}
@@ -0,0 +1,277 @@
+package org.lastbamboo.common.stun.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Open-addressing map keyed directly on the 96 random bits of a STUN
+ * transaction ID, held as a long and an int.  The first 32 bits of the ID
+ * are the magic cookie, so we leave them out of the key.  Lookups don't
+ * allocate anything, which matters when we're matching every received
+ * datagram against it.
+ * <p>
+ * The table never holds more than <code>capacity</code> entries.  When a
+ * new entry arrives while the table is full, the oldest entry still in the
+ * table is evicted and returned to the caller.  Entries that were already
+ * removed never count against the capacity, however long ago they were
+ * added.
+ *
+ * @param <V> The type of the values.
+ */
+final class TransactionIdTable<V> {
+
+    /**
+     * The offset of the 96 random bits within the 16 byte transaction ID.
+     */
+    static final int ID_OFFSET = 4;
+
+    private final long[] m_highs;
+
+    private final int[] m_lows;
+
+    private final Object[] m_values;
+
+    private final int m_mask;
+
+    private final int m_capacity;
+
+    /**
+     * Keys in the order we added them, as a ring.  Keys we've since removed
+     * stay in the ring until they reach the head or we compact it, so the
+     * ring is twice the capacity to leave room for them.
+     */
+    private final long[] m_orderHighs;
+
+    private final int[] m_orderLows;
+
+    private int m_orderHead;
+
+    private int m_orderCount;
+
+    private int m_size;
+
+    /**
+     * Creates a new table.
+     *
+     * @param capacity The maximum number of entries.
+     */
+    TransactionIdTable(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        int slots = 2;
+        while (slots < capacity * 2) {
+            slots <<= 1;
+        }
+        this.m_highs = new long[slots];
+        this.m_lows = new int[slots];
+        this.m_values = new Object[slots];
+        this.m_mask = slots - 1;
+        this.m_capacity = capacity;
+        this.m_orderHighs = new long[capacity * 2];
+        this.m_orderLows = new int[capacity * 2];
+    }
+
+    /**
+     * Returns the high 64 bits of the key for the specified transaction ID.
+     *
+     * @param id The 16 byte transaction ID, including the magic cookie.
+     * @return The high bits of the key.
+     */
+    static long highBits(final byte[] id) {
+        long bits = 0L;
+        for (int i = ID_OFFSET; i < ID_OFFSET + 8; i++) {
+            bits = (bits << 8) | (id[i] & 0xFF);
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the low 32 bits of the key for the specified transaction ID.
+     *
+     * @param id The 16 byte transaction ID, including the magic cookie.
+     * @return The low bits of the key.
+     */
+    static int lowBits(final byte[] id) {
+        int bits = 0;
+        for (int i = ID_OFFSET + 8; i < ID_OFFSET + 12; i++) {
+            bits = (bits << 8) | (id[i] & 0xFF);
+        }
+        return bits;
+    }
+
+    /**
+     * Adds an entry.
+     *
+     * @param high The high bits of the key.
+     * @param low The low bits of the key.
+     * @param value The value.
+     * @return Any value we evicted to make room, or <code>null</code> if
+     * there was none.
+     */
+    synchronized V put(final long high, final int low, final V value) {
+        if (value == null) {
+            throw new NullPointerException("Null value");
+        }
+        final int existing = indexOf(high, low);
+        if (existing >= 0) {
+            m_values[existing] = value;
+            return null;
+        }
+
+        V evicted = null;
+        if (m_size == m_capacity) {
+            evicted = removeOldest();
+        }
+        if (m_orderCount == m_orderHighs.length) {
+            compactOrder();
+        }
+        final int tail = (m_orderHead + m_orderCount) % m_orderHighs.length;
+        m_orderHighs[tail] = high;
+        m_orderLows[tail] = low;
+        m_orderCount++;
+
+        int index = hash(high, low) & m_mask;
+        while (m_values[index] != null) {
+            index = (index + 1) & m_mask;
+        }
+        m_highs[index] = high;
+        m_lows[index] = low;
+        m_values[index] = value;
+        m_size++;
+        return evicted;
+    }
+
+    /**
+     * Returns the value for the specified key.
+     *
+     * @param high The high bits of the key.
+     * @param low The low bits of the key.
+     * @return The value, or <code>null</code> if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V get(final long high, final int low) {
+        final int index = indexOf(high, low);
+        return index < 0 ? null : (V) m_values[index];
+    }
+
+    /**
+     * Removes the value for the specified key.
+     *
+     * @param high The high bits of the key.
+     * @param low The low bits of the key.
+     * @return The value, or <code>null</code> if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V remove(final long high, final int low) {
+        int index = indexOf(high, low);
+        if (index < 0) {
+            return null;
+        }
+        final V value = (V) m_values[index];
+        m_values[index] = null;
+        m_size--;
+
+        // Shift back any entries that probed past the slot we just freed
+        // so lookups never stop early at a hole.
+        int next = (index + 1) & m_mask;
+        while (m_values[next] != null) {
+            final int home = hash(m_highs[next], m_lows[next]) & m_mask;
+            if (((next - home) & m_mask) >= ((next - index) & m_mask)) {
+                m_highs[index] = m_highs[next];
+                m_lows[index] = m_lows[next];
+                m_values[index] = m_values[next];
+                m_values[next] = null;
+                index = next;
+            }
+            next = (next + 1) & m_mask;
+        }
+        return value;
+    }
+
+    /**
+     * Returns a copy of all the values in the table.
+     *
+     * @return All the values.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized Collection<V> values() {
+        final Collection<V> values = new ArrayList<V>(m_size);
+        for (final Object value : m_values) {
+            if (value != null) {
+                values.add((V) value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Accessor for the number of entries in the table.
+     *
+     * @return The number of entries.
+     */
+    synchronized int size() {
+        return m_size;
+    }
+
+    /**
+     * Removes the oldest entry still in the table, skipping over keys at
+     * the head of the ring that were already removed.
+     */
+    private V removeOldest() {
+        while (m_orderCount > 0) {
+            final long high = m_orderHighs[m_orderHead];
+            final int low = m_orderLows[m_orderHead];
+            m_orderHead = (m_orderHead + 1) % m_orderHighs.length;
+            m_orderCount--;
+            final V value = remove(high, low);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops keys we've already removed from the ring, keeping the rest in
+     * order.  The table holds at most <code>capacity</code> entries, so
+     * this always frees at least half the ring, and adding stays amortized
+     * constant time.
+     */
+    private void compactOrder() {
+        final int length = m_orderHighs.length;
+        int kept = 0;
+        for (int i = 0; i < m_orderCount; i++) {
+            final int from = (m_orderHead + i) % length;
+            if (indexOf(m_orderHighs[from], m_orderLows[from]) < 0) {
+                continue;
+            }
+            final int to = (m_orderHead + kept) % length;
+            m_orderHighs[to] = m_orderHighs[from];
+            m_orderLows[to] = m_orderLows[from];
+            kept++;
+        }
+        m_orderCount = kept;
+    }
+
+    private int indexOf(final long high, final int low) {
+        int index = hash(high, low) & m_mask;
+        while (m_values[index] != null) {
+            if (m_highs[index] == high && m_lows[index] == low) {
+                return index;
+            }
+            index = (index + 1) & m_mask;
+        }
+        return -1;
+    }
+
+    private static int hash(final long high, final int low) {
+        // The bits are random already, but mix them anyway in case someone
+        // generates IDs with a counter.
+        long h = high ^ (((long) low) * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
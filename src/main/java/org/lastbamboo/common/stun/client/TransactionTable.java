@@ -0,0 +1,118 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded table of outstanding UDP transactions, keyed on the raw bits of
+ * the transaction ID.  Entries only live as long as their transaction --
+ * callers remove them when the transaction completes or times out.  If the
+ * table is full we evict the oldest transaction rather than growing without
+ * bound.
+ */
+final class TransactionTable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(TransactionTable.class);
+
+    private final TransactionIdTable<StunClientTransaction> m_transactions;
+
+    private final AtomicLong m_evictions = new AtomicLong();
+
+    /**
+     * Creates a new table.
+     *
+     * @param capacity The maximum number of outstanding transactions.
+     */
+    TransactionTable(final int capacity) {
+        this.m_transactions =
+            new TransactionIdTable<StunClientTransaction>(capacity);
+    }
+
+    /**
+     * Adds a transaction, evicting the oldest transaction if we're full.
+     *
+     * @param tx The transaction.
+     */
+    void put(final StunClientTransaction tx) {
+        final StunClientTransaction evicted =
+            m_transactions.put(tx.getHighBits(), tx.getLowBits(), tx);
+        if (evicted != null) {
+            m_evictions.incrementAndGet();
+            LOG.warn("Transaction table full -- evicting {}", evicted);
+            evicted.abandon();
+        }
+    }
+
+    /**
+     * Returns the transaction with the specified ID.
+     *
+     * @param high The high bits of the transaction ID.
+     * @param low The low bits of the transaction ID.
+     * @return The transaction, or <code>null</code> if there is none.
+     */
+    StunClientTransaction get(final long high, final int low) {
+        return m_transactions.get(high, low);
+    }
+
+    /**
+     * Removes the specified transaction.
+     *
+     * @param tx The transaction.
+     */
+    void remove(final StunClientTransaction tx) {
+        m_transactions.remove(tx.getHighBits(), tx.getLowBits());
+    }
+
+    /**
+     * Returns all the outstanding transactions with the specified remote
+     * address.
+     *
+     * @param remoteAddress The remote address.
+     * @return The matching transactions.
+     */
+    Collection<StunClientTransaction> getTransactions(
+        final InetSocketAddress remoteAddress) {
+        final Collection<StunClientTransaction> matches =
+            new ArrayList<StunClientTransaction>();
+        for (final StunClientTransaction tx : m_transactions.values()) {
+            if (tx.getRemoteAddress().equals(remoteAddress)) {
+                matches.add(tx);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns all the outstanding transactions.
+     *
+     * @return The outstanding transactions.
+     */
+    Collection<StunClientTransaction> getTransactions() {
+        return m_transactions.values();
+    }
+
+    /**
+     * Accessor for the number of outstanding transactions.
+     *
+     * @return The number of outstanding transactions.
+     */
+    int size() {
+        return m_transactions.size();
+    }
+
+    /**
+     * Accessor for the number of transactions we've evicted because the
+     * table was full.
+     *
+     * @return The number of evictions.
+     */
+    long getEvictions() {
+        return m_evictions.get();
+    }
+}
@@ -1,33 +1,44 @@
 package org.lastbamboo.common.stun.client;
 
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.apache.commons.id.uuid.UUID;
-import org.littleshoot.dnssec4j.DNSSECException;
-import org.littleshoot.dnssec4j.DnsSec;
 import org.littleshoot.mina.common.ByteBuffer;
 import org.littleshoot.mina.common.ConnectFuture;
-import org.littleshoot.mina.common.ExecutorThreadModel;
-import org.littleshoot.mina.common.IoConnector;
+import org.littleshoot.mina.common.IoFuture;
+import org.littleshoot.mina.common.IoFutureListener;
+import org.littleshoot.mina.common.IoAcceptor;
 import org.littleshoot.mina.common.IoHandler;
+import org.littleshoot.mina.common.IoService;
+import org.littleshoot.mina.common.IoServiceConfig;
 import org.littleshoot.mina.common.IoServiceListener;
 import org.littleshoot.mina.common.IoSession;
-import org.littleshoot.mina.common.SimpleByteBufferAllocator;
-import org.littleshoot.mina.filter.codec.ProtocolCodecFactory;
-import org.littleshoot.mina.filter.codec.ProtocolCodecFilter;
-import org.littleshoot.mina.transport.socket.nio.DatagramConnector;
-import org.littleshoot.mina.transport.socket.nio.DatagramConnectorConfig;
+import org.littleshoot.mina.common.ThreadModel;
 import org.littleshoot.stun.stack.StunIoHandler;
-import org.littleshoot.stun.stack.StunProtocolCodecFactory;
 import org.littleshoot.stun.stack.message.BindingErrorResponse;
 import org.littleshoot.stun.stack.message.BindingRequest;
 import org.littleshoot.stun.stack.message.BindingSuccessResponse;
@@ -47,37 +58,196 @@ import org.slf4j.LoggerFactory;
 /**
  * Abstract STUN client.  Subclasses typically define transports.
  */
-public class UdpStunClient implements StunClient, StunTransactionListener {
+public class UdpStunClient implements StunClient, StunTransactionListener,
+    IcmpErrorListener, StunResponseDispatcher {
 
     private static final Logger LOG = 
         LoggerFactory.getLogger(UdpStunClient.class);
     
+    /**
+     * How long we give a server to answer the probe that decides whether 
+     * to close its open breaker.
+     */
+    private static final long PROBE_TIMEOUT = 1000L;
+    
+    /**
+     * How long we'll wait for the first of our servers to resolve.
+     */
+    private static final long SERVER_RESOLUTION_TIMEOUT = 15 * 1000L;
+    
     private final Collection<IoServiceListener> m_ioServiceListeners =
-        new ArrayList<IoServiceListener>();
+        new CopyOnWriteArrayList<IoServiceListener>();
 
-    private RankedStunServer m_stunServer;
+    /**
+     * The server we connect to by default.  This is only ever a hint we
+     * keep rotating as the ranking changes, so threads just overwrite it.
+     */
+    private volatile RankedStunServer m_stunServer;
+    
+    /**
+     * Completes once we have at least one server to rank, or once all our
+     * servers have failed to resolve.
+     */
+    private final CompletableFuture<Void> m_serversReady = 
+        new CompletableFuture<Void>();
     
     private final IoHandler m_ioHandler;
 
-    private final Map<UUID, StunMessage> m_idsToResponses =
-        new ConcurrentHashMap<UUID, StunMessage>();
+    /**
+     * Outstanding transactions.  Entries are removed as soon as their
+     * transaction completes or times out.
+     */
+    private final TransactionTable m_pendingTransactions = 
+        new TransactionTable(StunClientConfig.getMaxPendingTransactions());
+
+    /**
+     * Completes our transactions straight from the raw responses on our
+     * sessions, unless someone else's tracker or handler needs to see them.
+     */
+    private final RawResponseHandler m_responseHandler = 
+        new RawResponseHandler(this.m_pendingTransactions, 
+            StunClientConfig.getExecutor());
 
     private InetSocketAddress m_localAddress;
 
     /**
-     * Just keeps track of the current connection 5-tuple so we don't try
-     * to connect to the host we're already connected to.
+     * Our reference to the connector all clients share, or 
+     * <code>null</code> if we haven't connected yet.
      */
-    private IoSession m_currentIoSession;
+    private SharedDatagramConnector m_connector;
+
+    /**
+     * Our reference to the acceptor clients share in single socket mode, 
+     * or <code>null</code> if we haven't bound our socket yet.
+     */
+    private SharedDatagramAcceptor m_acceptor;
+
+    /**
+     * The address of our single unconnected socket.
+     */
+    private InetSocketAddress m_boundAddress;
+
+    /**
+     * Whether we send to and receive from all servers on one unconnected
+     * socket rather than connecting a socket to each server.
+     */
+    private final boolean m_singleSocket = StunClientConfig.isUseSingleSocket();
+
+    private final Object m_connectorLock = new Object();
+
+    /**
+     * Forwards events from the shared connector to our own service 
+     * listeners, but only for our own sessions.
+     */
+    private final IoServiceListener m_serviceListener = 
+        new IoServiceListener() {
+        
+        @Override
+        public void serviceActivated(final IoService service, 
+            final SocketAddress serviceAddress, final IoHandler handler, 
+            final IoServiceConfig config) {
+            if (handler != m_ioHandler) {
+                return;
+            }
+            for (final IoServiceListener sl : m_ioServiceListeners) {
+                sl.serviceActivated(service, serviceAddress, handler, config);
+            }
+        }
+        
+        @Override
+        public void serviceDeactivated(final IoService service, 
+            final SocketAddress serviceAddress, final IoHandler handler, 
+            final IoServiceConfig config) {
+            if (handler != m_ioHandler) {
+                return;
+            }
+            for (final IoServiceListener sl : m_ioServiceListeners) {
+                sl.serviceDeactivated(service, serviceAddress, handler, 
+                    config);
+            }
+        }
+        
+        @Override
+        public void sessionCreated(final IoSession session) {
+            if (session.getHandler() != m_ioHandler) {
+                return;
+            }
+            for (final IoServiceListener sl : m_ioServiceListeners) {
+                sl.sessionCreated(session);
+            }
+        }
+        
+        @Override
+        public void sessionDestroyed(final IoSession session) {
+            if (session.getHandler() != m_ioHandler) {
+                return;
+            }
+            for (final IoServiceListener sl : m_ioServiceListeners) {
+                sl.sessionDestroyed(session);
+            }
+        }
+    };
 
     private final StunTransactionTracker<StunMessage> m_transactionTracker;
 
+    private final boolean m_useTracker;
+
     private final InetSocketAddress m_originalLocalAddress;
 
-    private final Collection<IoSession> m_sessions = new ArrayList<IoSession>();
+    private final BindingRequestTemplate m_template = 
+        StunClientConfig.getBindingRequestTemplate();
+
+    /**
+     * How our sessions hand off received messages.
+     */
+    private final ThreadModel m_threadModel = 
+        StunExecutors.toThreadModel(StunClientConfig.getExecutor());
+
+    /**
+     * Our sessions, keyed on the remote address.  We keep the future for 
+     * each connect rather than the session itself, so everyone asking for
+     * a server while we're still connecting to it shares the one connect.
+     */
+    private final 
+        ConcurrentMap<InetSocketAddress, CompletableFuture<IoSession>> 
+        m_sessions = new ConcurrentHashMap<InetSocketAddress, 
+            CompletableFuture<IoSession>>();
+
+    private final StunServerRanking m_stunServers = new StunServerRanking(
+        new StunServerRanking.Prober() {
+            @Override
+            public void probe(final RankedStunServer server) {
+                probeServer(server);
+            }
+        });
 
-    private final Queue<RankedStunServer> m_stunServers = 
-        new PriorityQueue<UdpStunClient.RankedStunServer>();
+    /**
+     * Pulls the mapped address out of a binding response, returning 
+     * <code>null</code> for anything else.
+     */
+    private static final StunMessageVisitor<InetSocketAddress> 
+        MAPPED_ADDRESS_VISITOR = 
+        new StunMessageVisitorAdapter<InetSocketAddress>() {
+        @Override
+        public InetSocketAddress visitBindingSuccessResponse(
+                final BindingSuccessResponse response) {
+            return response.getMappedAddress();
+        }
+
+        @Override
+        public InetSocketAddress visitBindingErrorResponse(
+                final BindingErrorResponse response) {
+            LOG.warn("Received Binding Error Response: " + response);
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress visitConnectErrorMesssage(
+                final ConnectErrorStunMessage error) {
+            LOG.warn("Received ICMP error: {}", error);
+            return null;
+        }
+    };
 
     /**
      * Creates a new STUN client for ICE processing.  This client is capable
@@ -150,28 +320,52 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
             throw new NullPointerException("Null STUN server provider");
         }
         LOG.info("Creating UDP STUN CLIENT");
+        if (stunServers.isEmpty()) {
+            LOG.warn("Could not get STuN addresses!!");
+            throw new IOException("No STUN addresses returned!");
+        }
+        
+        // Resolve all the servers in parallel without holding up the
+        // caller.  Servers join the ranking as they resolve, and anything
+        // that needs a server waits for the first one.
+        final AtomicInteger remaining = new AtomicInteger(stunServers.size());
         for (final InetSocketAddress isa : stunServers) {
-            try {
-                this.m_stunServers.add(new RankedStunServer(isa));
-            } catch (final DNSSECException e) {
-                LOG.warn("DNSSEC verification error!!", e);
-            }
+            StunServerHealth.getServerAsync(isa).whenComplete(
+                new BiConsumer<RankedStunServer, Throwable>() {
+                @Override
+                public void accept(final RankedStunServer rss, 
+                    final Throwable t) {
+                    if (rss != null) {
+                        m_stunServers.add(rss);
+                        m_serversReady.complete(null);
+                    } else {
+                        LOG.warn("DNSSEC verification error!!", t);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        m_serversReady.complete(null);
+                    }
+                }
+            });
         }
-        ByteBuffer.setUseDirectBuffers(false);
-        ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        // Note we leave MINA's JVM-wide buffer allocator alone.  It belongs 
+        // to the application, and MINA's default pooled direct buffers save 
+        // a heap copy on every datagram.
         m_originalLocalAddress = localAddress;
         if (transactionTracker == null) {
             this.m_transactionTracker = new StunTransactionTrackerImpl();
         } else {
             this.m_transactionTracker = transactionTracker;
         }
-
-        m_stunServer = pickStunServerInetAddress();
+        
+        // If we create the tracker and the handler ourselves, responses go
+        // straight to our transaction table and nobody else ever looks at
+        // the tracker, so there's no need to register with it.
+        this.m_useTracker = transactionTracker != null || ioHandler != null;
 
         if (ioHandler == null) {
             final StunMessageVisitorFactory messageVisitorFactoryToUse = 
                 new StunClientMessageVisitorFactory(
-                    this.m_transactionTracker);
+                    this.m_transactionTracker, this, this);
             m_ioHandler = new StunIoHandler(messageVisitorFactoryToUse);
         } else {
             m_ioHandler = ioHandler;
@@ -182,9 +376,14 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
     public void connect() throws IOException {
         IoSession session;
         try {
-            session = connect(m_originalLocalAddress, m_stunServer.isa);
+            session = connect(m_originalLocalAddress, 
+                stunServer().getAddress());
         } catch (final IOException e) {
-            onFailure(m_stunServer);
+            final RankedStunServer server = m_stunServer;
+            if (server != null) {
+                server.onFailure();
+            }
+            onFailure();
             throw e;
         }
 
@@ -193,87 +392,210 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
         this.m_localAddress = (InetSocketAddress) session.getLocalAddress();
     }
 
-    private void onFailure(final RankedStunServer rss) throws IOException {
-        // It needs to get placed again in the ranking.
-        if (m_stunServer.failures < 5) {
-            m_stunServer.failures++;
-            m_stunServers.remove(rss);
-            m_stunServers.add(rss);
-        }
+    /**
+     * Moves on to whichever server now ranks best after a server failed.  
+     * The ranking itself already knows about the failure from the 
+     * transaction.
+     */
+    private void onFailure() throws IOException {
         this.m_stunServer = pickStunServerInetAddress();
     }
-    
-    private void onSuccess(final RankedStunServer m_stunServer2) {
-        if (m_stunServer.successes < 5) {
-            this.m_stunServer.successes++;
-        }
-    }
 
     private final IoSession connect(final InetSocketAddress localAddress,
             final InetSocketAddress stunServer) throws IOException {
-        // We can't connect twice to the same 5-tuple, so check to verify we're
-        // not reconnecting to the remote host we're already connected to.
-        if (this.m_currentIoSession != null
-                && this.m_currentIoSession.getRemoteAddress().equals(
-                        stunServer)) {
-            return this.m_currentIoSession;
+        final CompletableFuture<IoSession> future = 
+            connectAsync(localAddress, stunServer);
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted connecting to: " + stunServer);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Could not connect to: " + stunServer, 
+                e.getCause());
         }
+    }
 
-        final ProtocolCodecFactory codecFactory = new StunProtocolCodecFactory();
-        final ProtocolCodecFilter stunFilter = new ProtocolCodecFilter(
-                codecFactory);
-
-        final IoConnector connector = createConnector();
-        connector.getFilterChain().addLast("stunFilter", stunFilter);
+    /**
+     * Returns our session with the specified server, connecting first if 
+     * we don't have one.  This never waits on the connector.  We're often
+     * called from response callbacks running on the I/O thread, which with
+     * {@link StunExecutors#DIRECT} is the very thread that has to carry out
+     * the connect, so joining it there would hang every client sharing the
+     * thread.
+     * 
+     * @return A future that completes with the session once we're 
+     * connected, or exceptionally with an {@link IOException} if we can't 
+     * connect.
+     */
+    private CompletableFuture<IoSession> connectAsync(
+        final InetSocketAddress localAddress,
+        final InetSocketAddress stunServer) {
+        // We can't connect twice to the same 5-tuple, so only whoever gets
+        // their future into the map first connects, and everyone else 
+        // shares it.  A failed or closed session makes way for a new one.
+        while (true) {
+            final CompletableFuture<IoSession> existing = 
+                this.m_sessions.get(stunServer);
+            if (existing != null && isUsable(existing)) {
+                return existing;
+            }
+            final CompletableFuture<IoSession> future = 
+                new CompletableFuture<IoSession>();
+            final boolean won = existing == null ?
+                this.m_sessions.putIfAbsent(stunServer, future) == null :
+                this.m_sessions.replace(stunServer, existing, future);
+            if (won) {
+                startConnect(localAddress, stunServer, future);
+                return future;
+            }
+        }
+    }
 
-        if (this.m_ioServiceListeners.isEmpty()) {
-            LOG.debug("No service listeners for: {}", getClass()
-                    .getSimpleName());
+    /**
+     * Whether a session future is either still connecting or connected.
+     */
+    private static boolean isUsable(
+        final CompletableFuture<IoSession> session) {
+        if (!session.isDone()) {
+            return true;
         }
-        synchronized (this.m_ioServiceListeners) {
-            for (final IoServiceListener sl : this.m_ioServiceListeners) {
-                connector.addListener(sl);
+        return !session.isCompletedExceptionally() && 
+            session.join().isConnected();
+    }
+
+    private void startConnect(final InetSocketAddress localAddress,
+        final InetSocketAddress stunServer, 
+        final CompletableFuture<IoSession> future) {
+        if (this.m_singleSocket) {
+            try {
+                future.complete(
+                    newMultiplexedSession(localAddress, stunServer));
+            } catch (final IOException e) {
+                future.completeExceptionally(e);
             }
+            return;
         }
+
+        final SharedDatagramConnector connector = acquireConnector();
         LOG.debug("Connecting to: {}", stunServer);
-        final ConnectFuture cf = connector.connect(stunServer,
-            localAddress, m_ioHandler);
-        LOG.debug("About to join");
-        cf.join();
-        LOG.debug("Connected to: {}", stunServer);
-        final IoSession session = cf.getSession();
+        final ConnectFuture cf = connector.getConnector().connect(stunServer,
+            localAddress, m_ioHandler, connector.newConfig(m_threadModel));
+        cf.addListener(new IoFutureListener() {
+            @Override
+            public void operationComplete(final IoFuture f) {
+                final IoSession session;
+                try {
+                    session = cf.getSession();
+                } catch (final RuntimeException e) {
+                    future.completeExceptionally(new IOException(
+                        "Could not connect to: " + stunServer, e));
+                    return;
+                }
+                if (session == null) {
+                    future.completeExceptionally(new IOException(
+                        "Could not get session with: " + stunServer));
+                    return;
+                }
+                LOG.debug("Connected to: {}", stunServer);
+                setTransactions(session);
+                future.complete(session);
+            }
+        });
+    }
+
+    /**
+     * Creates a session for the specified server on top of our single 
+     * unconnected socket, binding the socket the first time through.
+     */
+    private IoSession newMultiplexedSession(
+        final InetSocketAddress localAddress,
+        final InetSocketAddress stunServer) throws IOException {
+        final InetSocketAddress bound;
+        final IoAcceptor acceptor;
+        synchronized (this.m_connectorLock) {
+            if (this.m_acceptor == null) {
+                final SharedDatagramAcceptor shared = 
+                    SharedDatagramAcceptor.acquire();
+                try {
+                    this.m_boundAddress = shared.bind(localAddress, 
+                        m_ioHandler, m_threadModel);
+                } catch (final IOException e) {
+                    shared.release();
+                    throw e;
+                }
+                shared.getAcceptor().addListener(this.m_serviceListener);
+                this.m_acceptor = shared;
+            }
+            bound = this.m_boundAddress;
+            acceptor = this.m_acceptor.getAcceptor();
+        }
+        LOG.debug("Creating multiplexed session with: {}", stunServer);
+        final IoSession session = acceptor.newSession(stunServer, bound);
         if (session == null) {
             throw new IOException("Could not get session with: "
                     + stunServer);
         }
-        this.m_sessions.add(session);
-        this.m_currentIoSession = session;
+        setTransactions(session);
         return session;
     }
 
+    /**
+     * Lets the {@link BindingResponseFilter} complete our transactions from
+     * responses on the session without fully decoding them.  If someone
+     * else's tracker or handler is involved they need to see every message,
+     * so we leave the session alone.
+     */
+    private void setTransactions(final IoSession session) {
+        if (!this.m_useTracker) {
+            session.setAttribute(BindingResponseFilter.RESPONSE_HANDLER, 
+                this.m_responseHandler);
+        }
+    }
+
+    /**
+     * Returns the connector shared by all clients, acquiring our reference 
+     * to it the first time through.
+     */
+    private SharedDatagramConnector acquireConnector() {
+        synchronized (this.m_connectorLock) {
+            if (this.m_connector == null) {
+                this.m_connector = SharedDatagramConnector.acquire();
+                this.m_connector.getConnector().addListener(
+                    this.m_serviceListener);
+            }
+            return this.m_connector;
+        }
+    }
+
     public InetSocketAddress getHostAddress() {
         return m_localAddress;
     }
 
     public InetAddress getStunServerAddress() {
-        return this.m_stunServer.isa.getAddress();
+        try {
+            return stunServer().getAddress().getAddress();
+        } catch (final IOException e) {
+            LOG.warn("No STUN servers", e);
+            return null;
+        }
     }
 
-    protected void waitIfNoResponse(final StunMessage request,
-            final long waitTime) {
-        LOG.debug("Waiting " + waitTime + " milliseconds...");
-        if (waitTime == 0L)
-            return;
-        if (!m_idsToResponses.containsKey(request.getTransactionId())) {
-            try {
-                LOG.debug("Actually waiting...");
-                request.wait(waitTime);
-            } catch (final InterruptedException e) {
-                // This can happen if multiple STUN clients are started in
-                // a thread pool, for example.
-                LOG.info("Interrupt", e);
-            }
+    /**
+     * Returns the server we connect to by default, picking one if we 
+     * haven't yet.
+     */
+    private RankedStunServer stunServer() throws IOException {
+        final RankedStunServer existing = this.m_stunServer;
+        if (existing != null) {
+            return existing;
         }
+        final RankedStunServer picked = pickStunServerInetAddress();
+        this.m_stunServer = picked;
+        return picked;
     }
 
     public Object onTransactionFailed(final StunMessage request,
@@ -288,13 +610,97 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
 
     private Object notifyWaiters(final StunMessage request, 
         final StunMessage response) {
-        synchronized (request) {
-            this.m_idsToResponses.put(request.getTransactionId(), response);
-            request.notify();
-        }
+        dispatch(response, null);
         return null;
     }
 
+    @Override
+    public boolean dispatch(final StunMessage response,
+        final InetSocketAddress source) {
+        final UUID id = response.getTransactionId();
+        if (id == null) {
+            return false;
+        }
+        final byte[] raw = id.getRawBytes();
+        final StunClientTransaction tx = this.m_pendingTransactions.get(
+            TransactionIdTable.highBits(raw), TransactionIdTable.lowBits(raw));
+        if (tx == null) {
+            // This will happen fairly frequently with UDP because messages
+            // are retransmitted in case any are lost, so we'll see 
+            // duplicate responses after the transaction completes.
+            return false;
+        }
+        if (!id.equals(tx.getRequest().getTransactionId())) {
+            // Same random bits but a different magic cookie.
+            return false;
+        }
+        if (this.m_singleSocket && source != null && 
+            !source.equals(tx.getRemoteAddress())) {
+            // In single socket mode anyone can send to us, so make sure
+            // the response came from the server we asked.
+            LOG.warn("Response from {} for transaction with {}", source, 
+                tx.getRemoteAddress());
+            return false;
+        }
+        
+        // The transaction's future takes it out of the table.
+        tx.complete(response);
+        return true;
+    }
+
+    @Override
+    public void onIcmpError(final InetSocketAddress remoteAddress,
+        final ConnectErrorStunMessage error) {
+        LOG.info("ICMP error from {} -- failing transactions", remoteAddress);
+        
+        // Don't bother with this server for a while.
+        final RankedStunServer rss = this.m_stunServers.get(remoteAddress);
+        if (rss != null) {
+            rss.markDown(StunClientConfig.getIcmpDownPeriod());
+        }
+        
+        // There's no point waiting out the retransmissions for anything
+        // else we've sent to the same place.
+        for (final StunClientTransaction tx : 
+            this.m_pendingTransactions.getTransactions(remoteAddress)) {
+            tx.fail(error);
+        }
+    }
+
+    /**
+     * Accessor for the number of transactions that are still waiting for a
+     * response.
+     * 
+     * @return The number of outstanding transactions.
+     */
+    public int getPendingTransactions() {
+        return this.m_pendingTransactions.size();
+    }
+
+    /**
+     * Accessor for the number of outstanding transactions we've given up on
+     * because there were already 
+     * {@link StunClientConfig#getMaxPendingTransactions()} in flight.
+     * 
+     * @return The number of evicted transactions.
+     */
+    public long getEvictedTransactions() {
+        return this.m_pendingTransactions.getEvictions();
+    }
+
+    /**
+     * Returns how our STUN servers currently rank.  Each score is the 
+     * expected cost, in milliseconds, of asking that server for a binding,
+     * taking into account its smoothed round-trip time, how often 
+     * transactions with it fail, how many retransmissions it needs and 
+     * how recently we've heard from it.
+     * 
+     * @return The score for each server keyed on its address, best first.
+     */
+    public Map<InetSocketAddress, Double> getServerScores() {
+        return this.m_stunServers.getScores();
+    }
+
     public final void addIoServiceListener(
             final IoServiceListener serviceListener) {
         LOG.debug("Adding service listener for: {}", this);
@@ -303,127 +709,417 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
 
     public void close() {
         LOG.info("Closing sessions...");
-        synchronized (m_sessions) {
-            for (final IoSession session : m_sessions) {
-                LOG.info("Closing: {}", session);
-                session.close();
+        for (final CompletableFuture<IoSession> session : 
+            m_sessions.values()) {
+            // Anything still connecting closes as soon as it's connected.
+            session.thenAccept(new Consumer<IoSession>() {
+                @Override
+                public void accept(final IoSession connected) {
+                    LOG.info("Closing: {}", connected);
+                    connected.close();
+                }
+            });
+        }
+        m_sessions.clear();
+        synchronized (this.m_connectorLock) {
+            if (this.m_connector != null) {
+                this.m_connector.getConnector().removeListener(
+                    this.m_serviceListener);
+                this.m_connector.release();
+                this.m_connector = null;
+            }
+            if (this.m_acceptor != null) {
+                this.m_acceptor.getAcceptor().removeListener(
+                    this.m_serviceListener);
+                this.m_acceptor.getAcceptor().unbind(this.m_boundAddress);
+                this.m_acceptor.release();
+                this.m_acceptor = null;
             }
         }
+        StunServerHealth.save();
     }
 
-    private IoConnector createConnector() {
-        final DatagramConnector connector = new DatagramConnector();
-        final DatagramConnectorConfig cfg = connector.getDefaultConfig();
-        cfg.getSessionConfig().setReuseAddress(true);
-        cfg.setThreadModel(ExecutorThreadModel.getInstance(getClass()
-                .getSimpleName()));
-        return connector;
+    public InetSocketAddress getServerReflexiveAddress() throws IOException {
+        final CompletableFuture<InetSocketAddress> future = 
+            getServerReflexiveAddressAsync();
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            LOG.info("Interrupt", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IOException("Interrupted getting server reflexive address");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not get server reflexive address!", 
+                cause);
+        }
     }
 
-    public InetSocketAddress getServerReflexiveAddress() throws IOException {
-        for (int i = 0; i < this.m_stunServers.size(); i++) {
-            LOG.info("Getting server reflexive address from: {}",
-                    this.m_stunServer);
-            final BindingRequest br = new BindingRequest();
-            final StunMessage message = write(br, this.m_stunServer.isa);
-            final StunMessageVisitor<InetSocketAddress> visitor = 
-                new StunMessageVisitorAdapter<InetSocketAddress>() {
-                @Override
-                public InetSocketAddress visitBindingSuccessResponse(
-                        final BindingSuccessResponse response) {
-                    return response.getMappedAddress();
-                }
+    @Override
+    public CompletableFuture<InetSocketAddress> 
+        getServerReflexiveAddressAsync() {
+        return startServerReflexiveLookup(null);
+    }
 
-                @Override
-                public InetSocketAddress visitBindingErrorResponse(
-                        final BindingErrorResponse response) {
-                    LOG.warn("Received Binding Error Response: " + response);
-                    return null;
-                }
+    /**
+     * Gets our server reflexive address as seen by servers of the specified
+     * address family only.
+     * 
+     * @param family The address family, either {@link Inet4Address} or 
+     * {@link Inet6Address}.
+     * @return A future that completes with the server reflexive address, or
+     * exceptionally if none of the servers of that family answer.
+     */
+    public CompletableFuture<InetSocketAddress> getServerReflexiveAddressAsync(
+        final Class<? extends InetAddress> family) {
+        return startServerReflexiveLookup(family);
+    }
 
-                @Override
-                public InetSocketAddress visitConnectErrorMesssage(
-                        final ConnectErrorStunMessage error) {
-                    LOG.warn("Received ICMP error: {}", error);
-                    return null;
+    private CompletableFuture<InetSocketAddress> startServerReflexiveLookup(
+        final Class<? extends InetAddress> family) {
+        final CompletableFuture<InetSocketAddress> future = 
+            new CompletableFuture<InetSocketAddress>();
+        
+        if (m_serversReady.isDone()) {
+            getServerReflexiveAddressAsync(future, 0, family);
+            return future;
+        }
+        
+        // Wait for our servers to resolve without blocking.
+        m_serversReady.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getServerReflexiveAddressAsync(future, 0, family);
+                } catch (final RuntimeException e) {
+                    // Nobody would ever see this otherwise.
+                    future.completeExceptionally(e);
                 }
-            };
+            }
+        });
+        return future;
+    }
 
-            final InetSocketAddress isa = message.accept(visitor);
-            if (isa == null) {
-                onFailure(m_stunServer);
-                continue;
+    /**
+     * Gets our IPv4 and IPv6 server reflexive addresses, asking servers of 
+     * both families in parallel.
+     * 
+     * @return The addresses we got, IPv4 first.
+     * @throws IOException If we couldn't get an address for either family.
+     */
+    public List<InetSocketAddress> getServerReflexiveAddresses() 
+        throws IOException {
+        final CompletableFuture<List<InetSocketAddress>> future = 
+            getServerReflexiveAddressesAsync();
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            LOG.info("Interrupt", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            throw new IOException("Interrupted getting server reflexive addresses");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
-            onSuccess(this.m_stunServer);
-            
-            // Always keep rotating.
-            this.m_stunServer = pickStunServerInetAddress();
-            return isa;
+            throw new IOException("Could not get server reflexive addresses!", 
+                cause);
         }
+    }
 
-        // If we get here, all our attempts failed. Maybe the client's offline?
-        throw new IOException("Could not get server reflexive address!");
+    /**
+     * Gets our IPv4 and IPv6 server reflexive addresses, asking servers of 
+     * both families in parallel.  Once one family has answered we only wait
+     * {@link StunClientConfig#getDualStackGracePeriod()} for the other, so
+     * a broken path for one family -- typically IPv6 -- never holds up the
+     * other family's address by more than that.  Callers that can act on 
+     * each family as soon as it's in should use 
+     * {@link #getServerReflexiveAddressAsync(Class)} for each family 
+     * instead.
+     * 
+     * @return A future that completes with the addresses we got, IPv4 
+     * first, or exceptionally if we couldn't get an address for either 
+     * family.
+     */
+    public CompletableFuture<List<InetSocketAddress>> 
+        getServerReflexiveAddressesAsync() {
+        return new DualStackLookup(
+            getServerReflexiveAddressAsync(Inet4Address.class),
+            getServerReflexiveAddressAsync(Inet6Address.class)).start();
+    }
+
+    /**
+     * Tries whichever server the ranking picks, picking again each time a
+     * server fails until we've tried as many servers as we have.
+     * 
+     * @param family The address family to restrict ourselves to, or 
+     * <code>null</code> for servers of any family.
+     */
+    private void getServerReflexiveAddressAsync(
+        final CompletableFuture<InetSocketAddress> future, final int attempt,
+        final Class<? extends InetAddress> family) {
+        if (future.isDone()) {
+            return;
+        }
+        if (attempt >= this.m_stunServers.count(family)) {
+            // If we get here, all our attempts failed. Maybe the client's 
+            // offline?
+            future.completeExceptionally(
+                new IOException("Could not get server reflexive address!"));
+            return;
+        }
+        
+        // Skip straight past servers with open breakers rather than 
+        // waiting out another timeout.
+        final RankedStunServer server = this.m_stunServers.pick(family);
+        if (server == null) {
+            future.completeExceptionally(
+                new IOException("No STUN servers available!"));
+            return;
+        }
+        if (StunClientConfig.isHedgeRequests()) {
+            final RankedStunServer hedge = 
+                this.m_stunServers.pickOther(server, family);
+            if (hedge != null) {
+                new HedgedLookup(future, attempt, family, server, hedge).
+                    start();
+                return;
+            }
+        }
+        LOG.info("Getting server reflexive address from: {}", server);
+        final BindingRequest br = new BindingRequest();
+        final CompletableFuture<StunMessage> response;
+        try {
+            response = writeAsync(br, server.getAddress());
+        } catch (final IOException e) {
+            // There's no transaction to tell the ranking about this.
+            server.onFailure();
+            onServerReflexiveFailure(future, server, attempt, family, e);
+            return;
+        }
+        response.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                if (t != null) {
+                    onServerReflexiveFailure(future, server, attempt, family,
+                        t);
+                    return;
+                }
+                final InetSocketAddress isa = 
+                    message.accept(MAPPED_ADDRESS_VISITOR);
+                if (isa == null) {
+                    onServerReflexiveFailure(future, server, attempt, family,
+                        null);
+                    return;
+                }
+                // Always keep rotating.
+                try {
+                    m_stunServer = pickStunServerInetAddress();
+                } catch (final IOException e) {
+                    // Can't happen since we just used a server.
+                    LOG.warn("No servers?", e);
+                }
+                future.complete(isa);
+            }
+        });
+    }
+
+    private void onServerReflexiveFailure(
+        final CompletableFuture<InetSocketAddress> future,
+        final RankedStunServer server, final int attempt, 
+        final Class<? extends InetAddress> family, final Throwable t) {
+        if (t != null) {
+            LOG.info("Error getting server reflexive address from: " + 
+                server, t);
+        }
+        
+        // We're typically on the timer or I/O thread here, so move on to
+        // the next server somewhere we're free to block.
+        StunExecutors.FAILOVER.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    onFailure();
+                    getServerReflexiveAddressAsync(future, attempt + 1, 
+                        family);
+                } catch (final IOException e) {
+                    future.completeExceptionally(e);
+                } catch (final RuntimeException e) {
+                    // Nobody would ever see this otherwise.
+                    future.completeExceptionally(e);
+                }
+            }
+        });
     }
 
     public StunMessage write(final BindingRequest request,
         final InetSocketAddress remoteAddress) throws IOException {
-        // Use an RTO of 100ms, as discussed in
-        // draft-ietf-behave-rfc3489bis-06.txt section 7.1. Note we just
-        // use this value and don't cache previously discovered values for
-        // the RTO.
-        final long rto = 100L;
+        // Start with the RTO we've learned for this server, as discussed in
+        // RFC 5389 section 7.2.1. If we haven't talked to the server recently
+        // this is the 100ms default from draft-ietf-behave-rfc3489bis-06.txt 
+        // section 7.1.
+        final long rto = RttTable.getRto(remoteAddress);
         return write(request, remoteAddress, rto);
     }
 
     public StunMessage write(final BindingRequest request,
             final InetSocketAddress remoteAddress, final long rto)
             throws IOException {
-        // Note we've typically already "connected" around creation time with
-        // the connect method, but it's cheap with UDP.
-        final IoSession session = connect(this.m_localAddress, remoteAddress);
-
-        // This method will retransmit the same request multiple times because
-        // it's being sent unreliably. All of these requests will be
-        // identical, using the same transaction ID.
-        final UUID id = request.getTransactionId();
+        final CompletableFuture<StunMessage> future = 
+            writeAsync(request, remoteAddress, rto);
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            // This can happen if multiple STUN clients are started in
+            // a thread pool, for example.
+            LOG.info("Interrupt", e);
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return new NullStunMessage();
+        } catch (final ExecutionException e) {
+            LOG.warn("Error writing to: " + remoteAddress, e);
+            return new NullStunMessage();
+        }
+    }
 
-        this.m_transactionTracker.addTransaction(request, this,
-                this.m_localAddress, remoteAddress);
+    @Override
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress) 
+        throws IOException {
+        return writeAsync(request, remoteAddress, 
+            RttTable.getRto(remoteAddress));
+    }
 
-        int requests = 0;
+    @Override
+    public CompletableFuture<StunMessage> writeAsync(
+        final BindingRequest request, final InetSocketAddress remoteAddress,
+        final long rto) throws IOException {
+        return startTransactions(Collections.singletonList(request), 
+            remoteAddress, rto).get(0).getFuture();
+    }
 
-        long waitTime = 0L;
-        synchronized (request) {
-            while (!m_idsToResponses.containsKey(id) && requests < 7) {
-                waitIfNoResponse(request, waitTime);
+    @Override
+    public List<StunMessage> writeAll(final Collection<BindingRequest> requests,
+        final InetSocketAddress remoteAddress) throws IOException {
+        final List<CompletableFuture<StunMessage>> futures = 
+            writeAllAsync(requests, remoteAddress);
+        final List<StunMessage> responses = 
+            new ArrayList<StunMessage>(futures.size());
+        for (final CompletableFuture<StunMessage> future : futures) {
+            try {
+                responses.add(future.get());
+            } catch (final InterruptedException e) {
+                LOG.info("Interrupt", e);
+                Thread.currentThread().interrupt();
+                for (final CompletableFuture<StunMessage> f : futures) {
+                    f.cancel(false);
+                }
+                throw new IOException("Interrupted writing requests");
+            } catch (final ExecutionException e) {
+                LOG.warn("Error writing to: " + remoteAddress, e);
+                responses.add(new NullStunMessage());
+            }
+        }
+        return responses;
+    }
 
-                // See draft-ietf-behave-rfc3489bis-06.txt section 7.1. We
-                // continually send the same request until we receive a
-                // response, never sending more that 7 requests and using
-                // an expanding interval between requests based on the
-                // estimated round-trip-time to the server. This is because
-                // some requests can be lost with UDP.
-                session.write(request);
+    @Override
+    public List<CompletableFuture<StunMessage>> writeAllAsync(
+        final Collection<BindingRequest> requests, 
+        final InetSocketAddress remoteAddress) throws IOException {
+        final List<StunClientTransaction> txs = startTransactions(requests, 
+            remoteAddress, RttTable.getRto(remoteAddress));
+        final List<CompletableFuture<StunMessage>> futures = 
+            new ArrayList<CompletableFuture<StunMessage>>(txs.size());
+        for (final StunClientTransaction tx : txs) {
+            futures.add(tx.getFuture());
+        }
+        return futures;
+    }
 
-                // Wait a little longer with each send.
-                waitTime = (2 * waitTime) + rto;
+    /**
+     * Registers transactions for all the specified requests and starts 
+     * sending them on a single retransmission schedule.
+     */
+    private List<StunClientTransaction> startTransactions(
+        final Collection<BindingRequest> requests, 
+        final InetSocketAddress remoteAddress, final long rto) 
+        throws IOException {
+        // Note we've typically already "connected" around creation time with
+        // the connect method, but it's cheap with UDP.  If we haven't, we 
+        // register the transactions now and start sending once we have.
+        final CompletableFuture<IoSession> session = 
+            connectAsync(this.m_localAddress, remoteAddress);
 
-                requests++;
+        // Each request will be retransmitted multiple times because it's 
+        // being sent unreliably. All of the retransmissions of a request will
+        // be identical, using the same transaction ID. The shared timer 
+        // drives the retransmissions for all the requests together, and each
+        // future completes when its response is dispatched to it or on the 
+        // final timeout.
+        final List<StunClientTransaction> txs = 
+            new ArrayList<StunClientTransaction>(requests.size());
+        for (final BindingRequest request : requests) {
+            final StunClientTransaction tx = 
+                new StunClientTransaction(request, remoteAddress);
+            this.m_pendingTransactions.put(tx);
+            tx.getFuture().whenComplete(
+                new BiConsumer<StunMessage, Throwable>() {
+                @Override
+                public void accept(final StunMessage response, 
+                    final Throwable t) {
+                    m_pendingTransactions.remove(tx);
+                    m_stunServers.onTransactionDone(tx, response, t);
+                }
+            });
+            if (this.m_useTracker) {
+                this.m_transactionTracker.addTransaction(request, this,
+                        this.m_localAddress, remoteAddress);
             }
-
-            // Now we wait for 1.6 seconds after the last request was sent.
-            // If we still don't receive a response, then the transaction
-            // has failed.
-            waitIfNoResponse(request, 1600);
+            txs.add(tx);
         }
+        session.whenComplete(new BiConsumer<IoSession, Throwable>() {
+            @Override
+            public void accept(final IoSession connected, final Throwable t) {
+                if (t != null) {
+                    LOG.info("Could not connect to: " + remoteAddress, t);
+                    for (final StunClientTransaction tx : txs) {
+                        tx.fail(new NullStunMessage());
+                    }
+                    return;
+                }
+                new RetransmissionSchedule(new RequestSender() {
+                    @Override
+                    public void send(final StunClientTransaction tx) {
+                        connected.write(encode(tx));
+                    }
+                }, txs, rto).start();
+            }
+        });
+        return txs;
+    }
 
-        if (m_idsToResponses.containsKey(id)) {
-            final StunMessage response = this.m_idsToResponses.get(id);
-            return response;
+    /**
+     * Returns what to write to the session for the transaction's request.
+     * Requests without attributes of their own are encoded from our 
+     * template and go straight past the codec.  Anything else, or anything
+     * someone else's tracker or handler might want to see go out as a 
+     * message, goes through the codec as usual.
+     */
+    private Object encode(final StunClientTransaction tx) {
+        final BindingRequest request = tx.getRequest();
+        if (this.m_useTracker || !request.getAttributes().isEmpty()) {
+            return request;
         }
-
-        LOG.warn("Did not get response from: " + remoteAddress);
-        return new NullStunMessage();
+        final ByteBuffer buf = ByteBuffer.allocate(this.m_template.getLength());
+        this.m_template.encode(buf.buf(), tx.getTransactionId());
+        buf.flip();
+        return buf;
     }
 
     public InetSocketAddress getRelayAddress() {
@@ -439,53 +1135,316 @@ public class UdpStunClient implements StunClient, StunTransactionListener {
     }
 
     private RankedStunServer pickStunServerInetAddress() throws IOException {
-        return pickStunServerInetAddress(null);
-    }
-
-    private RankedStunServer pickStunServerInetAddress(
-            final InetSocketAddress skipAddress) throws IOException {
+        awaitServers();
         if (m_stunServers.isEmpty()) {
             LOG.warn("Could not get STuN addresses!!");
             throw new IOException("No STUN addresses returned!");
         }
-        if (skipAddress != null) {
-            m_stunServers.remove(skipAddress);
+        final RankedStunServer available = m_stunServers.pick(null);
+        if (available != null) {
+            return available;
         }
-        final RankedStunServer rss = m_stunServers.peek();
-        return rss;
+        
+        // They're all unavailable, but we still need a server to connect
+        // to and report.
+        return m_stunServers.pickAny();
     }
 
-    private class RankedStunServer implements Comparable<RankedStunServer>{
+    /**
+     * Waits for the first of our servers to resolve, or for all of them to
+     * fail to.
+     */
+    private void awaitServers() throws IOException {
+        if (m_serversReady.isDone()) {
+            return;
+        }
+        try {
+            m_serversReady.get(SERVER_RESOLUTION_TIMEOUT, 
+                TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted resolving STUN servers");
+        } catch (final ExecutionException e) {
+            // We never complete it exceptionally.
+            throw new IOException("Could not resolve STUN servers", e);
+        } catch (final TimeoutException e) {
+            throw new IOException("Timed out resolving STUN servers");
+        }
+    }
 
-        private InetSocketAddress isa;
-        private int successes;
-        private int failures;
-        private RankedStunServer(final InetSocketAddress isa) 
-            throws DNSSECException {
-            if (isa.isUnresolved() && StunClientConfig.isUseDnsSec()) {
-                try {
-                    this.isa = DnsSec.verify(isa);
-                } catch (IOException e) {
-                    this.isa = isa;
+    /**
+     * Sends the single cheap probe that decides whether to close a server's
+     * open breaker.  An answer closes the breaker, and no answer within 
+     * {@link #PROBE_TIMEOUT} keeps it open for longer.
+     */
+    private void probeServer(final RankedStunServer server) {
+        LOG.debug("Probing: {}", server);
+        final CompletableFuture<StunMessage> response;
+        try {
+            response = writeAsync(new BindingRequest(), server.getAddress());
+        } catch (final IOException e) {
+            LOG.debug("Could not probe: " + server, e);
+            server.onProbeFailed();
+            return;
+        }
+        final HashedTimerWheel.Timeout timeout = 
+            RetransmissionSchedule.TIMER.schedule(
+                new HashedTimerWheel.TimerTask() {
+                    @Override
+                    public void run(final HashedTimerWheel.Timeout t) {
+                        response.cancel(false);
+                    }
+                }, PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+        response.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+            @Override
+            public void accept(final StunMessage message, final Throwable t) {
+                timeout.cancel();
+                
+                // Only a successful answer closes the breaker.  Anything 
+                // else -- an error response, giving up, or us cutting the 
+                // probe short -- has to let go of the probe, or the breaker
+                // waits on it forever.
+                if (!(message instanceof BindingSuccessResponse)) {
+                    server.onProbeFailed();
                 }
-            } else {
-                this.isa = isa;
             }
+        });
+    }
+
+    /**
+     * A server reflexive address lookup that sends to the primary server 
+     * and, if the primary hasn't answered within its 95th percentile 
+     * round-trip time, also to a second server.  The first valid response
+     * wins, and the other transaction is cancelled.
+     */
+    private final class HedgedLookup {
+
+        private final CompletableFuture<InetSocketAddress> m_future;
+        private final int m_attempt;
+        private final Class<? extends InetAddress> m_family;
+        private final RankedStunServer m_primary;
+        private final RankedStunServer m_secondary;
+        private final AtomicBoolean m_hedged = new AtomicBoolean();
+        private final AtomicInteger m_failures = new AtomicInteger();
+        private final Collection<CompletableFuture<StunMessage>> m_writes =
+            new ConcurrentLinkedQueue<CompletableFuture<StunMessage>>();
+        private volatile HashedTimerWheel.Timeout m_timeout;
+
+        /**
+         * Sends the hedge.  Like failover, this runs on 
+         * {@link StunExecutors#FAILOVER} rather than the timer or I/O 
+         * thread that decided it was time.
+         */
+        private final Runnable m_hedge = new Runnable() {
+            @Override
+            public void run() {
+                hedge();
+            }
+        };
+
+        private HedgedLookup(final CompletableFuture<InetSocketAddress> future,
+            final int attempt, final Class<? extends InetAddress> family,
+            final RankedStunServer primary, final RankedStunServer secondary) {
+            this.m_future = future;
+            this.m_attempt = attempt;
+            this.m_family = family;
+            this.m_primary = primary;
+            this.m_secondary = secondary;
         }
-        private int getScore() {
-            return successes - failures;
+
+        private void start() {
+            LOG.info("Getting server reflexive address from: {}", m_primary);
+            send(m_primary);
+            final long delay = 
+                RttTable.getEstimator(m_primary.getAddress()).getHedgeDelay();
+            m_timeout = RetransmissionSchedule.TIMER.schedule(
+                new HashedTimerWheel.TimerTask() {
+                    @Override
+                    public void run(final HashedTimerWheel.Timeout timeout) {
+                        StunExecutors.FAILOVER.execute(m_hedge);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
         }
-        
 
-        @Override
-        public String toString() {
-            return "RankedStunServer [isa=" + isa + " score="+getScore()+"]";
+        private void hedge() {
+            if (m_future.isDone() || !m_hedged.compareAndSet(false, true)) {
+                return;
+            }
+            LOG.info("Hedging server reflexive lookup to: {}", m_secondary);
+            send(m_secondary);
         }
-        
-        @Override
-        public int compareTo(final RankedStunServer rss) {
-            final Integer score1 = rss.getScore();
-            return score1.compareTo(getScore());
+
+        private void send(final RankedStunServer server) {
+            CompletableFuture<StunMessage> write;
+            try {
+                write = writeAsync(new BindingRequest(), server.getAddress());
+            } catch (final IOException e) {
+                LOG.info("Could not write to: " + server, e);
+                server.onFailure();
+                write = CompletableFuture.<StunMessage>completedFuture(
+                    new NullStunMessage());
+            }
+            m_writes.add(write);
+            write.whenComplete(new BiConsumer<StunMessage, Throwable>() {
+                @Override
+                public void accept(final StunMessage message, 
+                    final Throwable t) {
+                    onResponse(server, message, t);
+                }
+            });
+        }
+
+        private void onResponse(final RankedStunServer server,
+            final StunMessage message, final Throwable t) {
+            if (t instanceof CancellationException) {
+                // We cancelled this one because the other server won.
+                return;
+            }
+            final InetSocketAddress isa = 
+                t == null ? message.accept(MAPPED_ADDRESS_VISITOR) : null;
+            if (isa != null) {
+                if (m_future.complete(isa)) {
+                    finish();
+                }
+                return;
+            }
+            StunExecutors.FAILOVER.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        onFailed(server);
+                    } catch (final RuntimeException e) {
+                        // Nobody would ever see this otherwise.
+                        m_future.completeExceptionally(e);
+                        finish();
+                    }
+                }
+            });
+        }
+
+        private void onFailed(final RankedStunServer server) {
+            try {
+                onFailure();
+            } catch (final IOException e) {
+                m_future.completeExceptionally(e);
+                finish();
+                return;
+            }
+            if (server == m_primary) {
+                // No point waiting any longer for the hedge.
+                final HashedTimerWheel.Timeout timeout = m_timeout;
+                if (timeout != null) {
+                    timeout.cancel();
+                }
+                hedge();
+            }
+            if (m_failures.incrementAndGet() == 2) {
+                getServerReflexiveAddressAsync(m_future, m_attempt + 2, 
+                    m_family);
+            }
+        }
+
+        private void finish() {
+            final HashedTimerWheel.Timeout timeout = m_timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            for (final CompletableFuture<StunMessage> write : m_writes) {
+                write.cancel(false);
+            }
+            
+            // Always keep rotating.
+            try {
+                m_stunServer = pickStunServerInetAddress();
+            } catch (final IOException e) {
+                LOG.warn("No servers?", e);
+            }
+        }
+    }
+
+    /**
+     * Waits for IPv4 and IPv6 server reflexive lookups running in parallel,
+     * giving up on the slower family a grace period after the faster one 
+     * answers.
+     */
+    private static final class DualStackLookup {
+
+        private final CompletableFuture<InetSocketAddress> m_ipv4;
+        private final CompletableFuture<InetSocketAddress> m_ipv6;
+        private final CompletableFuture<List<InetSocketAddress>> m_result =
+            new CompletableFuture<List<InetSocketAddress>>();
+        private final AtomicBoolean m_waiting = new AtomicBoolean();
+        private volatile HashedTimerWheel.Timeout m_timeout;
+
+        private DualStackLookup(final CompletableFuture<InetSocketAddress> ipv4,
+            final CompletableFuture<InetSocketAddress> ipv6) {
+            this.m_ipv4 = ipv4;
+            this.m_ipv6 = ipv6;
+        }
+
+        private CompletableFuture<List<InetSocketAddress>> start() {
+            final BiConsumer<InetSocketAddress, Throwable> onLookup = 
+                new BiConsumer<InetSocketAddress, Throwable>() {
+                @Override
+                public void accept(final InetSocketAddress isa, 
+                    final Throwable t) {
+                    onLookup(isa);
+                }
+            };
+            m_ipv4.whenComplete(onLookup);
+            m_ipv6.whenComplete(onLookup);
+            return m_result;
+        }
+
+        private void onLookup(final InetSocketAddress isa) {
+            if (m_ipv4.isDone() && m_ipv6.isDone()) {
+                finish();
+                return;
+            }
+            if (isa != null && m_waiting.compareAndSet(false, true)) {
+                m_timeout = RetransmissionSchedule.TIMER.schedule(
+                    new HashedTimerWheel.TimerTask() {
+                        @Override
+                        public void run(final HashedTimerWheel.Timeout t) {
+                            LOG.debug("Giving up on slower address family");
+                            finish();
+                        }
+                    }, StunClientConfig.getDualStackGracePeriod(), 
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void finish() {
+            final List<InetSocketAddress> addresses = 
+                new ArrayList<InetSocketAddress>(2);
+            addIfDone(m_ipv4, addresses);
+            addIfDone(m_ipv6, addresses);
+            final boolean completed;
+            if (addresses.isEmpty()) {
+                completed = m_result.completeExceptionally(
+                    new IOException("Could not get server reflexive address!"));
+            } else {
+                completed = m_result.complete(addresses);
+            }
+            if (!completed) {
+                return;
+            }
+            final HashedTimerWheel.Timeout timeout = m_timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            
+            // Stop moving on to other servers for the slow family.
+            m_ipv4.cancel(false);
+            m_ipv6.cancel(false);
+        }
+
+        private static void addIfDone(
+            final CompletableFuture<InetSocketAddress> lookup,
+            final List<InetSocketAddress> addresses) {
+            if (lookup.isDone() && !lookup.isCompletedExceptionally()) {
+                addresses.add(lookup.join());
+            }
         }
     }
 }
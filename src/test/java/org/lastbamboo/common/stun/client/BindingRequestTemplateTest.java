@@ -0,0 +1,68 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+/**
+ * Tests for pre-encoded binding requests.
+ */
+public class BindingRequestTemplateTest {
+
+    @Test
+    public void testPlain() throws Exception {
+        final byte[] id = StunWireTest.transactionId();
+        final ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        BindingRequestTemplate.PLAIN.encode(buf, id);
+        assertEquals(StunWire.HEADER_LENGTH, buf.position());
+        buf.flip();
+        assertEquals(StunWire.BINDING_REQUEST, StunWire.getType(buf));
+        assertEquals(0, buf.getShort(2));
+        for (int i = 0; i < id.length; i++) {
+            assertEquals(id[i], buf.get(4 + i));
+        }
+    }
+
+    @Test
+    public void testSoftwareAndFingerprint() throws Exception {
+        final BindingRequestTemplate template = 
+            new BindingRequestTemplate("littleshoot", true);
+        
+        // 11 bytes of SOFTWARE padded to 12, plus 8 bytes of FINGERPRINT.
+        assertEquals(StunWire.HEADER_LENGTH + 16 + 8, template.getLength());
+        
+        final byte[] id = StunWireTest.transactionId();
+        final ByteBuffer buf = ByteBuffer.allocate(template.getLength());
+        template.encode(buf, id);
+        buf.flip();
+        assertEquals(24, buf.getShort(2));
+        assertEquals(0x8022, buf.getShort(20) & 0xFFFF);
+        assertEquals(11, buf.getShort(22));
+        assertEquals(StunWire.HEADER_LENGTH + 16 + 4, 
+            StunWire.findAttribute(buf, 0x8028));
+        assertFingerprint(buf);
+        
+        // Different IDs need different CRCs.
+        id[10] ^= 0x55;
+        buf.clear();
+        template.encode(buf, id);
+        buf.flip();
+        assertEquals(id[10], buf.get(14));
+        assertFingerprint(buf);
+    }
+
+    private static void assertFingerprint(final ByteBuffer buf) {
+        final int crcOffset = buf.limit() - 8;
+        final byte[] covered = new byte[crcOffset];
+        for (int i = 0; i < covered.length; i++) {
+            covered[i] = buf.get(i);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(covered);
+        assertEquals((int) crc.getValue() ^ 0x5354554E, 
+            buf.getInt(crcOffset + 4));
+    }
+}
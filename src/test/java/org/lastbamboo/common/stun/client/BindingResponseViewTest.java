@@ -0,0 +1,63 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for the flyweight binding response view.
+ */
+public class BindingResponseViewTest {
+
+    @Test
+    public void testReuse() throws Exception {
+        final BindingResponseView view = new BindingResponseView();
+        final InetSocketAddress first = 
+            new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 1000);
+        final InetSocketAddress second = 
+            new InetSocketAddress(InetAddress.getByName("192.0.2.2"), 2000);
+        
+        view.wrap(StunWireTest.response(first, StunWire.XOR_MAPPED_ADDRESS));
+        assertTrue(view.isBindingResponse());
+        assertTrue(view.isSuccess());
+        assertEquals(first, view.getMappedAddress());
+        
+        view.wrap(StunWireTest.response(second, StunWire.MAPPED_ADDRESS));
+        assertEquals(second, view.getMappedAddress());
+    }
+
+    @Test
+    public void testOffset() throws Exception {
+        final InetSocketAddress isa = 
+            new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 1000);
+        final ByteBuffer response = 
+            StunWireTest.response(isa, StunWire.XOR_MAPPED_ADDRESS);
+        
+        // Put the response somewhere other than the start of the buffer.
+        final ByteBuffer buf = ByteBuffer.allocate(response.remaining() + 7);
+        buf.position(7);
+        buf.put(response);
+        buf.position(7);
+        
+        final BindingResponseView view = new BindingResponseView().wrap(buf);
+        assertTrue(view.isSuccess());
+        assertEquals(isa, view.getMappedAddress());
+    }
+
+    @Test
+    public void testNotResponse() throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(StunWire.HEADER_LENGTH);
+        BindingRequestTemplate.PLAIN.encode(buf, new byte[16]);
+        buf.flip();
+        assertFalse(new BindingResponseView().wrap(buf).isBindingResponse());
+        
+        final ByteBuffer runt = ByteBuffer.allocate(4);
+        assertFalse(new BindingResponseView().wrap(runt).isBindingResponse());
+    }
+}
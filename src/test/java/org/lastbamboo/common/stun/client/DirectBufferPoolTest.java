@@ -0,0 +1,49 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for the direct buffer pool.
+ */
+public class DirectBufferPoolTest {
+
+    @Test
+    public void testReuse() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(64, 2);
+        final ByteBuffer buf = pool.acquire();
+        assertTrue(buf.isDirect());
+        assertEquals(64, buf.capacity());
+        buf.putInt(42);
+        pool.release(buf);
+        assertEquals(1, pool.getIdle());
+        
+        final ByteBuffer reused = pool.acquire();
+        assertSame(buf, reused);
+        assertEquals("Buffer not cleared", 0, reused.position());
+        assertEquals(0, pool.getIdle());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        final DirectBufferPool pool = new DirectBufferPool(64, 2);
+        final ByteBuffer a = pool.acquire();
+        final ByteBuffer b = pool.acquire();
+        final ByteBuffer c = pool.acquire();
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        assertEquals(2, pool.getIdle());
+        
+        // Buffers that didn't come from the pool don't go into it.
+        pool.acquire();
+        pool.release(ByteBuffer.allocate(64));
+        pool.release(ByteBuffer.allocateDirect(32));
+        assertEquals(1, pool.getIdle());
+    }
+}
@@ -0,0 +1,74 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests for the timer wheel.
+ */
+public class HashedTimerWheelTest {
+
+    @Test
+    public void testExpiry() throws Exception {
+        final HashedTimerWheel wheel = 
+            new HashedTimerWheel(5L, 8, "Test-Timer");
+        final int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            // Spread these across several rotations of the wheel.
+            wheel.schedule(new HashedTimerWheel.TimerTask() {
+                @Override
+                public void run(final HashedTimerWheel.Timeout timeout) {
+                    latch.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+        assertTrue("Timeouts did not expire", 
+            latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, wheel.getPendingTimeouts());
+    }
+
+    @Test
+    public void testNotEarly() throws Exception {
+        final HashedTimerWheel wheel = 
+            new HashedTimerWheel(5L, 8, "Test-Timer");
+        final long start = System.nanoTime();
+        final CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(new HashedTimerWheel.TimerTask() {
+            @Override
+            public void run(final HashedTimerWheel.Timeout timeout) {
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        final long elapsed = 
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Fired early: "+elapsed, elapsed >= 100);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final HashedTimerWheel wheel = 
+            new HashedTimerWheel(5L, 8, "Test-Timer");
+        final AtomicInteger fired = new AtomicInteger();
+        final HashedTimerWheel.Timeout timeout = wheel.schedule(
+            new HashedTimerWheel.TimerTask() {
+                @Override
+                public void run(final HashedTimerWheel.Timeout to) {
+                    fired.incrementAndGet();
+                }
+            }, 20, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        Thread.sleep(100);
+        assertEquals(0, fired.get());
+        assertEquals(0, wheel.getPendingTimeouts());
+    }
+}
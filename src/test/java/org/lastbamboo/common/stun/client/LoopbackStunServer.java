@@ -0,0 +1,94 @@
+package org.lastbamboo.common.stun.client;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal STUN server that answers every binding request with the 
+ * sender's address, or with an error if asked to.
+ */
+final class LoopbackStunServer implements Runnable {
+
+    private final DatagramSocket m_socket;
+
+    private final int m_errorCode;
+
+    LoopbackStunServer() throws SocketException {
+        this(-1);
+    }
+
+    /**
+     * Creates a server that answers every binding request with a binding
+     * error response.
+     * 
+     * @param errorCode The error code to answer with, or -1 to answer 
+     * with the sender's address as usual.
+     */
+    LoopbackStunServer(final int errorCode) throws SocketException {
+        this.m_errorCode = errorCode;
+        this.m_socket = new DatagramSocket(0, 
+            InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(this, "Loopback-STUN-Server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    InetSocketAddress getAddress() {
+        return (InetSocketAddress) this.m_socket.getLocalSocketAddress();
+    }
+
+    void close() {
+        this.m_socket.close();
+    }
+
+    @Override
+    public void run() {
+        final byte[] in = new byte[1024];
+        final byte[] out = new byte[StunWire.HEADER_LENGTH + 12];
+        final DatagramPacket request = new DatagramPacket(in, in.length);
+        while (!this.m_socket.isClosed()) {
+            try {
+                request.setLength(in.length);
+                this.m_socket.receive(request);
+                if (request.getLength() < StunWire.HEADER_LENGTH) {
+                    continue;
+                }
+                final ByteBuffer buf = ByteBuffer.wrap(out);
+                if (this.m_errorCode >= 0) {
+                    buf.putShort((short) StunWire.BINDING_ERROR_RESPONSE);
+                    buf.putShort((short) 8);
+                    buf.put(in, 4, 16);
+                    buf.putShort((short) StunWire.ERROR_CODE);
+                    buf.putShort((short) 4);
+                    buf.putShort((short) 0);
+                    buf.put((byte) (this.m_errorCode / 100));
+                    buf.put((byte) (this.m_errorCode % 100));
+                    this.m_socket.send(new DatagramPacket(out, 
+                        buf.position(), request.getSocketAddress()));
+                    continue;
+                }
+                buf.putShort((short) StunWire.BINDING_SUCCESS_RESPONSE);
+                buf.putShort((short) 12);
+                buf.put(in, 4, 16);
+                buf.putShort((short) StunWire.XOR_MAPPED_ADDRESS);
+                buf.putShort((short) 8);
+                buf.put((byte) 0);
+                buf.put((byte) 1);
+                buf.putShort((short) (request.getPort() ^ 
+                    (StunWire.MAGIC_COOKIE >>> 16)));
+                final byte[] address = request.getAddress().getAddress();
+                for (int i = 0; i < address.length; i++) {
+                    buf.put((byte) (address[i] ^ in[4 + i]));
+                }
+                this.m_socket.send(new DatagramPacket(out, out.length, 
+                    request.getSocketAddress()));
+            } catch (final Exception e) {
+                // Socket closed.
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.lastbamboo.common.stun.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Side-by-side timing comparison of the raw NIO client and the MINA client
+ * against a loopback server.  Timings on shared build machines are far too
+ * noisy to assert on, so this isn't part of the unit suite -- run it by
+ * hand:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... \
+ *     org.lastbamboo.common.stun.client.NioStunClientBenchmark [round trips]
+ * </pre>
+ */
+public final class NioStunClientBenchmark {
+
+    private static final int WARMUP = 2000;
+
+    private static final int DEFAULT_ROUND_TRIPS = 10000;
+
+    private NioStunClientBenchmark() {}
+
+    public static void main(final String[] args) throws Exception {
+        final int roundTrips = args.length > 0 ?
+            Integer.parseInt(args[0]) : DEFAULT_ROUND_TRIPS;
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final NioStunClient nio = new NioStunClient(server.getAddress());
+        final UdpStunClient mina = new UdpStunClient(server.getAddress());
+        try {
+            nio.connect();
+            mina.connect();
+            final long nioNanos = time(nio, server.getAddress(), roundTrips);
+            final long minaNanos =
+                time(mina, server.getAddress(), roundTrips);
+            System.out.println("Average binding round trip over " +
+                roundTrips + " requests -- NIO: " + nioNanos / 1000.0 +
+                "us MINA: " + minaNanos / 1000.0 + "us");
+        } finally {
+            nio.close();
+            mina.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Returns the average round trip time in nanoseconds for binding
+     * requests written one at a time.
+     */
+    private static long time(final StunClient client,
+        final InetSocketAddress server, final int roundTrips)
+        throws IOException {
+        for (int i = 0; i < WARMUP; i++) {
+            check(client.write(new BindingRequest(), server));
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < roundTrips; i++) {
+            check(client.write(new BindingRequest(), server));
+        }
+        return (System.nanoTime() - start) / roundTrips;
+    }
+
+    private static void check(final StunMessage response) {
+        if (!(response instanceof BindingSuccessResponse)) {
+            throw new IllegalStateException("Unexpected response: " +
+                response);
+        }
+    }
+}
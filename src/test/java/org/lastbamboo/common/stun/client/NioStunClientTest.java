@@ -0,0 +1,49 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for the raw NIO STUN client.
+ */
+public class NioStunClientTest {
+
+    @Test
+    public void testLoopback() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final NioStunClient client = new NioStunClient(server.getAddress());
+        try {
+            final InetSocketAddress srflx = client.getServerReflexiveAddress();
+            assertEquals(client.getHostAddress().getPort(), srflx.getPort());
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testUnresolvableServer() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final NioStunClient client = new NioStunClient(
+            InetSocketAddress.createUnresolved("stun.invalid", 3478),
+            server.getAddress());
+        try {
+            client.connect();
+            final InetSocketAddress srflx =
+                client.getServerReflexiveAddressAsync().get(5,
+                    TimeUnit.SECONDS);
+            assertEquals(client.getHostAddress().getPort(), srflx.getPort());
+            assertEquals(Arrays.asList(server.getAddress()),
+                client.getStunServers());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+}
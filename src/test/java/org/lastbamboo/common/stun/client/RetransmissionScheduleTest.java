@@ -0,0 +1,71 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for the retransmission schedule.
+ */
+public class RetransmissionScheduleTest {
+
+    @Test
+    public void testBackedOffRtoStillBounded() throws Exception {
+        final long timeLimit = StunClientConfig.getUdpTransactionTimeout();
+        StunClientConfig.setUdpTransactionTimeout(500L);
+        try {
+            backedOffRtoStillBounded();
+        } finally {
+            StunClientConfig.setUdpTransactionTimeout(timeLimit);
+        }
+    }
+
+    @Test
+    public void testGiveUpTime() throws Exception {
+        // Waits of 1, 3, 7, 15, 31 and 63 RTOs, then 16 after the last.
+        assertEquals(13600L, RetransmissionSchedule.getGiveUpTime(100L));
+        final long timeLimit = StunClientConfig.getUdpTransactionTimeout();
+        StunClientConfig.setUdpTransactionTimeout(500L);
+        try {
+            assertEquals(500L, RetransmissionSchedule.getGiveUpTime(100L));
+        } finally {
+            StunClientConfig.setUdpTransactionTimeout(timeLimit);
+        }
+    }
+
+    private static void backedOffRtoStillBounded() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 10; i++) {
+            estimator.onTimeout();
+        }
+        assertEquals(RttEstimator.MAX_RTO, estimator.getRto());
+
+        // Without the ceiling this would take over six minutes.
+        final AtomicInteger sends = new AtomicInteger();
+        final StunClientTransaction tx = new StunClientTransaction(
+            new BindingRequest(), new InetSocketAddress("127.0.0.1", 3478));
+        final long start = System.currentTimeMillis();
+        new RetransmissionSchedule(new RequestSender() {
+            @Override
+            public void send(final StunClientTransaction sent) {
+                sends.incrementAndGet();
+            }
+        }, Collections.singletonList(tx), estimator.getRto()).start();
+
+        final StunMessage response = tx.getFuture().get(5, TimeUnit.SECONDS);
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue(response instanceof NullStunMessage);
+        assertTrue("Took " + elapsed + "ms", elapsed < 2000L);
+        assertTrue(elapsed >= 450L);
+        assertEquals(1, sends.get());
+    }
+}
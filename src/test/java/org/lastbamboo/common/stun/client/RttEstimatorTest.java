@@ -0,0 +1,53 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for RTT estimation.
+ */
+public class RttEstimatorTest {
+
+    @Test
+    public void testDefaultRto() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        assertEquals(RttEstimator.DEFAULT_RTO, estimator.getRto());
+        assertEquals(-1.0, estimator.getSrtt(), 0.0);
+    }
+
+    @Test
+    public void testFastServer() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.addSample(5L);
+        }
+        assertEquals(5.0, estimator.getSrtt(), 0.5);
+        assertTrue("RTO too high: "+estimator.getRto(), 
+            estimator.getRto() < 30L);
+        assertTrue("RTO too low: "+estimator.getRto(),
+            estimator.getRto() >= RttEstimator.MIN_RTO);
+    }
+
+    @Test
+    public void testSlowServer() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        for (int i = 0; i < 20; i++) {
+            estimator.addSample(250L);
+        }
+        assertTrue("RTO too low: "+estimator.getRto(), 
+            estimator.getRto() > 250L);
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        final RttEstimator estimator = new RttEstimator();
+        estimator.onTimeout();
+        assertEquals(2 * RttEstimator.DEFAULT_RTO, estimator.getRto());
+        for (int i = 0; i < 10; i++) {
+            estimator.onTimeout();
+        }
+        assertEquals(RttEstimator.MAX_RTO, estimator.getRto());
+    }
+}
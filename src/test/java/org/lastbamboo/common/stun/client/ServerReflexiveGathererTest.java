@@ -0,0 +1,112 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for gathering server reflexive candidates across interfaces.
+ */
+public class ServerReflexiveGathererTest {
+
+    @Test
+    public void testGather() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final ServerReflexiveGatherer gatherer = new ServerReflexiveGatherer(
+            Collections.singletonList(server.getAddress()));
+        try {
+            final InetAddress loopback = InetAddress.getLoopbackAddress();
+            final Map<InetSocketAddress, InetSocketAddress> candidates = 
+                gatherer.gather(Collections.singletonList(loopback), 2000);
+            assertEquals(1, candidates.size());
+            final Map.Entry<InetSocketAddress, InetSocketAddress> entry = 
+                candidates.entrySet().iterator().next();
+            
+            // There's no NAT on loopback.
+            assertEquals(entry.getKey(), entry.getValue());
+        } finally {
+            gatherer.close();
+            server.close();
+        }
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        // A server that never answers alongside one that does.
+        final DatagramSocket silent = 
+            new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final ServerReflexiveGatherer answering = new ServerReflexiveGatherer(
+            Arrays.asList((InetSocketAddress) silent.getLocalSocketAddress(),
+                server.getAddress()));
+        final ServerReflexiveGatherer dead = new ServerReflexiveGatherer(
+            Collections.singletonList(
+                (InetSocketAddress) silent.getLocalSocketAddress()));
+        try {
+            final InetAddress loopback = InetAddress.getLoopbackAddress();
+            
+            // The answering server is enough -- we shouldn't wait for the 
+            // silent one.
+            long start = System.currentTimeMillis();
+            assertEquals(1, answering.gather(
+                Collections.singletonList(loopback), 5000).size());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            
+            start = System.currentTimeMillis();
+            assertTrue(dead.gather(
+                Collections.singletonList(loopback), 300).isEmpty());
+            assertTrue(System.currentTimeMillis() - start < 2000);
+        } finally {
+            answering.close();
+            dead.close();
+            server.close();
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testBestServersOnly() throws Exception {
+        // A server we know is down, listed first, alongside two that are
+        // fine.  We should only ask the best two.
+        final DatagramSocket down = 
+            new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final DatagramSocket silent = 
+            new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final InetSocketAddress downAddress = 
+            (InetSocketAddress) down.getLocalSocketAddress();
+        StunServerHealth.getServer(downAddress).markDown(60 * 1000L);
+        final ServerReflexiveGatherer gatherer = new ServerReflexiveGatherer(
+            Arrays.asList(downAddress, 
+                (InetSocketAddress) silent.getLocalSocketAddress(),
+                server.getAddress()));
+        try {
+            assertEquals(1, gatherer.gather(Collections.singletonList(
+                InetAddress.getLoopbackAddress()), 2000).size());
+            down.setSoTimeout(200);
+            try {
+                down.receive(new DatagramPacket(new byte[512], 512));
+                fail("Asked a server that's down");
+            } catch (final SocketTimeoutException e) {
+                // Expected.
+            }
+        } finally {
+            gatherer.close();
+            server.close();
+            silent.close();
+            down.close();
+            StunServerHealth.clear();
+        }
+    }
+}
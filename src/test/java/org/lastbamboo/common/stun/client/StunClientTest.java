@@ -2,12 +2,28 @@ package org.lastbamboo.common.stun.client;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 import org.littleshoot.stun.stack.StunConstants;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.ConnectErrorStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
 import org.littleshoot.util.CandidateProvider;
 import org.littleshoot.util.DnsSrvCandidateProvider;
 import org.slf4j.Logger;
@@ -74,6 +90,25 @@ public class StunClientTest {
         }
     }
     
+    @Test
+    public void testWriteAll() throws Exception {
+        final InetSocketAddress server = 
+            new InetSocketAddress("stun.l.google.com", 19302);
+        final StunClient sc = new UdpStunClient(server);
+        sc.connect();
+        final Collection<BindingRequest> requests = 
+            new ArrayList<BindingRequest>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(new BindingRequest());
+        }
+        final List<StunMessage> responses = sc.writeAll(requests, server);
+        assertEquals(requests.size(), responses.size());
+        for (final StunMessage response : responses) {
+            assertTrue("Unexpected response: "+response, 
+                response instanceof BindingSuccessResponse);
+        }
+    }
+    
     @Test
     public void testRanking() throws Exception {
         final int port = StunConstants.STUN_PORT;
@@ -101,4 +136,145 @@ public class StunClientTest {
             sc.getServerReflexiveAddress();
         }
     }
+    
+    @Test
+    public void testDualStackBrokenIpv6() throws Exception {
+        // An IPv6 server that never answers shouldn't hold up IPv4.
+        final DatagramSocket silent = bindIpv6Loopback();
+        assumeTrue(silent != null);
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final UdpStunClient client = new UdpStunClient(Arrays.asList(
+            (InetSocketAddress) silent.getLocalSocketAddress(),
+            server.getAddress()));
+        try {
+            final long start = System.currentTimeMillis();
+            final List<InetSocketAddress> srflx = 
+                client.getServerReflexiveAddresses();
+            assertTrue(System.currentTimeMillis() - start < 
+                StunClientConfig.getDualStackGracePeriod() + 2000);
+            assertEquals(1, srflx.size());
+            assertTrue(srflx.get(0).getAddress() instanceof Inet4Address);
+        } finally {
+            client.close();
+            server.close();
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testHedgedLookup() throws Exception {
+        final boolean hedge = StunClientConfig.isHedgeRequests();
+        StunClientConfig.setHedgeRequests(true);
+        try {
+            hedgedLookup();
+        } finally {
+            StunClientConfig.setHedgeRequests(hedge);
+        }
+    }
+
+    private static void hedgedLookup() throws Exception {
+        // The silent server looks like the fastest we know of, so it's the 
+        // primary, and the hedge goes to the server that actually answers.
+        final DatagramSocket silent = 
+            new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final InetSocketAddress primary = 
+            (InetSocketAddress) silent.getLocalSocketAddress();
+        final RankedStunServer rss = StunServerHealth.getServer(primary);
+        for (int i = 0; i < 10; i++) {
+            rss.onSuccess(5L, 1);
+            RttTable.getEstimator(primary).addSample(5L);
+        }
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final UdpStunClient client = new UdpStunClient(
+            Arrays.asList(primary, server.getAddress()));
+        try {
+            client.connect();
+            final long start = System.currentTimeMillis();
+            final InetSocketAddress srflx = 
+                client.getServerReflexiveAddress();
+            final long elapsed = System.currentTimeMillis() - start;
+            assertNotNull(srflx);
+
+            // Waiting for the primary to time out would take 79 RTOs.
+            assertTrue("Took " + elapsed + "ms", elapsed < 
+                RttTable.getRto(primary) * 40);
+
+            // The primary's transaction is cancelled rather than left to
+            // retransmit, and that doesn't count against the primary.
+            final long deadline = System.currentTimeMillis() + 1000;
+            while (client.getPendingTransactions() > 0 && 
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, client.getPendingTransactions());
+            assertTrue(received(silent) < 
+                RetransmissionSchedule.MAX_REQUESTS);
+            assertEquals(0.0, rss.getLossRate(), 0.0);
+        } finally {
+            client.close();
+            server.close();
+            silent.close();
+        }
+    }
+
+    @Test
+    public void testPortUnreachable() throws Exception {
+        // Find a port nobody's listening on.
+        final DatagramSocket closed = 
+            new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final InetSocketAddress address = 
+            (InetSocketAddress) closed.getLocalSocketAddress();
+        closed.close();
+
+        final UdpStunClient client = new UdpStunClient(address);
+        try {
+            client.connect();
+            final long start = System.currentTimeMillis();
+            final StunMessage response = client.writeAsync(
+                new BindingRequest(), address).get(5, TimeUnit.SECONDS);
+            final long elapsed = System.currentTimeMillis() - start;
+
+            // The ICMP error fails the request right away rather than 
+            // leaving it to time out.
+            assertTrue("Unexpected response: " + response, 
+                response instanceof ConnectErrorStunMessage);
+            assertTrue("Took " + elapsed + "ms", elapsed < 
+                RttTable.getRto(address));
+            assertTrue(StunServerHealth.getServer(address).isOpen());
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Counts the requests that reach a socket that never answers.
+     */
+    private static int received(final DatagramSocket silent) 
+        throws IOException {
+        silent.setSoTimeout(200);
+        final DatagramPacket packet = 
+            new DatagramPacket(new byte[1024], 1024);
+        int count = 0;
+        try {
+            while (true) {
+                silent.receive(packet);
+                count++;
+            }
+        } catch (final SocketTimeoutException e) {
+            return count;
+        }
+    }
+
+    /**
+     * Binds a socket to the IPv6 loopback address, if there is one.
+     * 
+     * @return The socket, or <code>null</code> if we can't bind to ::1.
+     */
+    private static DatagramSocket bindIpv6Loopback() {
+        try {
+            return new DatagramSocket(0, InetAddress.getByName("::1"));
+        } catch (final IOException e) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for the execution strategies.
+ */
+public class StunExecutorsTest {
+
+    @Test
+    public void testDirect() throws Exception {
+        final AtomicReference<Thread> ran = new AtomicReference<Thread>();
+        StunExecutors.DIRECT.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.set(Thread.currentThread());
+            }
+        });
+        assertSame(Thread.currentThread(), ran.get());
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        final ExecutorService executor = 
+            StunExecutors.newVirtualThreadExecutor();
+        try {
+            final CountDownLatch latch = new CountDownLatch(100);
+            for (int i = 0; i < 100; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        latch.countDown();
+                    }
+                });
+            }
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+/**
+ * Tests for saving and loading server health.
+ */
+public class StunServerHealthTest {
+
+    @Test
+    public void testShared() throws Exception {
+        final InetSocketAddress address =
+            new InetSocketAddress("127.0.0.1", 3478);
+        assertSame(StunServerHealth.getServer(address),
+            StunServerHealth.getServer(address));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        final File file = healthFile();
+        try {
+            saveAndLoad(file);
+        } finally {
+            reset(file);
+        }
+    }
+
+    private static void saveAndLoad(final File file) throws Exception {
+        final InetSocketAddress fast =
+            new InetSocketAddress("127.0.0.101", 3478);
+        final InetSocketAddress dead =
+            new InetSocketAddress("127.0.0.102", 3478);
+        final RankedStunServer fastServer = StunServerHealth.getServer(fast);
+        for (int i = 0; i < 10; i++) {
+            fastServer.onSuccess(7L, 1);
+            RttTable.getEstimator(fast).addSample(7L);
+        }
+        final RankedStunServer deadServer = StunServerHealth.getServer(dead);
+        deadServer.markDown(60 * 1000L);
+        final double score = fastServer.getScore();
+        final long rto = RttTable.getRto(fast);
+        assertTrue(rto != RttEstimator.DEFAULT_RTO);
+        StunServerHealth.save();
+        assertTrue(file.length() > 0);
+
+        // Simulate a restart.
+        StunServerHealth.clear();
+        RttTable.clear();
+        final RankedStunServer reloaded = StunServerHealth.getServer(fast);
+        assertTrue(fastServer != reloaded);
+        assertEquals(score, reloaded.getScore(), 0.01);
+        assertEquals(7.0, reloaded.getRtt(), 0.01);
+        assertEquals(rto, RttTable.getRto(fast));
+        assertTrue(StunServerHealth.getServer(dead).isOpen());
+        assertFalse(reloaded.isOpen());
+    }
+
+    @Test
+    public void testCorruptFileIgnored() throws Exception {
+        final File file = healthFile();
+        try {
+            final FileOutputStream out = new FileOutputStream(file);
+            out.write(new byte[] {1, 2, 3});
+            out.close();
+            final RankedStunServer rss = StunServerHealth.getServer(
+                new InetSocketAddress("127.0.0.103", 3478));
+            assertEquals(RttEstimator.DEFAULT_RTO, rss.getScore(), 0.001);
+        } finally {
+            reset(file);
+        }
+    }
+
+    private static File healthFile() throws Exception {
+        final File file = File.createTempFile("stun-health", ".bin");
+        file.delete();
+        StunServerHealth.clear();
+        StunClientConfig.setServerHealthFile(file);
+        return file;
+    }
+
+    private static void reset(final File file) {
+        StunClientConfig.setServerHealthFile(null);
+        StunServerHealth.clear();
+        RttTable.clear();
+        file.delete();
+    }
+}
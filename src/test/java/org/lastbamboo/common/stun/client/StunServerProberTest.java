@@ -0,0 +1,101 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.Test;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for probing STUN servers in the background.
+ */
+public class StunServerProberTest {
+
+    @Test
+    public void testProbeClosesBreaker() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer();
+        final RankedStunServer rss =
+            StunServerHealth.getServer(server.getAddress());
+        rss.markDown(1L);
+        Thread.sleep(20);
+        assertTrue(rss.isOpen());
+
+        final int rate = StunClientConfig.getMaxServerProbesPerSecond();
+        StunClientConfig.setMaxServerProbesPerSecond(50);
+        final StunServerProber prober = new StunServerProber(
+            new CandidateProvider<InetSocketAddress>() {
+                @Override
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Arrays.asList(server.getAddress());
+                }
+
+                @Override
+                public InetSocketAddress getCandidate() {
+                    return server.getAddress();
+                }
+            });
+        try {
+            prober.start();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (rss.isOpen() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertFalse("Probe should have closed the breaker", rss.isOpen());
+            assertTrue(rss.getLastUpdate() > 0L);
+            assertEquals(0.0, rss.getLossRate(), 0.0);
+
+            // Now that we've just heard from it, it's not due again.
+            final long heard = rss.getLastUpdate();
+            Thread.sleep(200);
+            assertEquals(heard, rss.getLastUpdate());
+        } finally {
+            prober.stop();
+            StunClientConfig.setMaxServerProbesPerSecond(rate);
+            server.close();
+        }
+    }
+
+    @Test
+    public void testErrorResponsesCountAgainstServer() throws Exception {
+        final LoopbackStunServer server = new LoopbackStunServer(500);
+        final RankedStunServer rss =
+            StunServerHealth.getServer(server.getAddress());
+        rss.markDown(1L);
+        Thread.sleep(20);
+
+        final int rate = StunClientConfig.getMaxServerProbesPerSecond();
+        StunClientConfig.setMaxServerProbesPerSecond(50);
+        final StunServerProber prober = new StunServerProber(
+            new CandidateProvider<InetSocketAddress>() {
+                @Override
+                public Collection<InetSocketAddress> getCandidates() {
+                    return Arrays.asList(server.getAddress());
+                }
+
+                @Override
+                public InetSocketAddress getCandidate() {
+                    return server.getAddress();
+                }
+            });
+        try {
+            prober.start();
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (rss.getLossRate() == 0.0 &&
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue("Error response should count as a failure",
+                rss.getLossRate() > 0.0);
+            assertTrue(rss.isOpen());
+        } finally {
+            prober.stop();
+            StunClientConfig.setMaxServerProbesPerSecond(rate);
+            server.close();
+        }
+    }
+}
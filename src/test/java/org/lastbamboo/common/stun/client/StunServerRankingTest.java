@@ -0,0 +1,273 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests for ranking STUN servers.
+ */
+public class StunServerRankingTest {
+
+    @Test
+    public void testUnknownServer() throws Exception {
+        final RankedStunServer rss = server(1);
+        assertEquals(RttEstimator.DEFAULT_RTO, rss.getScore(), 0.001);
+        assertEquals(0.0, rss.getLossRate(), 0.0);
+    }
+
+    @Test
+    public void testFasterServerWins() throws Exception {
+        final RankedStunServer fast = server(1);
+        final RankedStunServer slow = server(2);
+        for (int i = 0; i < 20; i++) {
+            fast.onSuccess(4L, 1);
+            slow.onSuccess(400L, 1);
+        }
+        assertEquals(4.0, fast.getRtt(), 0.5);
+        final StunServerRanking ranking = ranking(slow, fast);
+        assertSame(fast, ranking.pick(null));
+
+        final Map<InetSocketAddress, Double> scores = ranking.getScores();
+        final Iterator<InetSocketAddress> iter = scores.keySet().iterator();
+        assertEquals(fast.getAddress(), iter.next());
+        assertEquals(slow.getAddress(), iter.next());
+    }
+
+    @Test
+    public void testLossyServerLoses() throws Exception {
+        final RankedStunServer lossy = server(1);
+        final RankedStunServer reliable = server(2);
+        for (int i = 0; i < 20; i++) {
+            lossy.onSuccess(4L, 1);
+            if (i % 4 == 0) {
+                lossy.onFailure();
+            }
+            reliable.onSuccess(150L, 1);
+        }
+        assertTrue(lossy.getLossRate() > 0.0);
+        assertSame(reliable, ranking(lossy, reliable).pick(null));
+    }
+
+    @Test
+    public void testRetransmitsCount() throws Exception {
+        final RankedStunServer clean = server(1);
+        final RankedStunServer flaky = server(2);
+        for (int i = 0; i < 20; i++) {
+            clean.onSuccess(50L, 1);
+            flaky.onSuccess(40L, 1);
+            flaky.onSuccess(-1L, 3);
+        }
+        assertTrue(flaky.getRetransmitRatio() > 0.5);
+        assertSame(clean, ranking(flaky, clean).pick(null));
+    }
+
+    @Test
+    public void testDownServerSkipped() throws Exception {
+        final RankedStunServer fast = server(1);
+        final RankedStunServer slow = server(2);
+        fast.onSuccess(4L, 1);
+        slow.onSuccess(400L, 1);
+        fast.markDown(60 * 1000L);
+        final StunServerRanking ranking = ranking(fast, slow);
+        assertSame(slow, ranking.pick(null));
+        assertSame(slow, ranking.pickOther(null, null));
+        assertEquals(null, ranking.pickOther(slow, null));
+    }
+
+    @Test
+    public void testBreakerOpensAfterFailures() throws Exception {
+        final RankedStunServer fast = server(1);
+        final RankedStunServer slow = server(2);
+        fast.onSuccess(4L, 1);
+        slow.onSuccess(400L, 1);
+        final StunServerRanking ranking = ranking(fast, slow);
+        fast.onFailure();
+        fast.onFailure();
+        assertFalse(fast.isOpen());
+        fast.onFailure();
+        assertTrue(fast.isOpen());
+        assertSame(slow, ranking.pick(null));
+
+        slow.markDown(60 * 1000L);
+        assertEquals(null, ranking.pick(null));
+        assertSame("Failures cost more than slowness", slow,
+            ranking.pickAny());
+    }
+
+    @Test
+    public void testHalfOpenProbe() throws Exception {
+        final RankedStunServer rss = server(1);
+        rss.markDown(1L);
+        Thread.sleep(20);
+        assertTrue(rss.isOpen());
+        assertTrue(rss.tryStartProbe());
+        assertFalse("Only one probe at a time", rss.tryStartProbe());
+
+        rss.onProbeFailed();
+        assertTrue(rss.isOpen());
+        assertFalse("Should back off again", rss.tryStartProbe());
+
+        rss.markDown(1L);
+        Thread.sleep(20);
+        assertFalse("Backoff should have doubled", rss.tryStartProbe());
+    }
+
+    @Test
+    public void testProbeSuccessCloses() throws Exception {
+        final RankedStunServer rss = server(1);
+        rss.markDown(1L);
+        Thread.sleep(20);
+        final List<RankedStunServer> probed = new ArrayList<RankedStunServer>();
+        final StunServerRanking ranking = new StunServerRanking(
+            new StunServerRanking.Prober() {
+                @Override
+                public void probe(final RankedStunServer server) {
+                    probed.add(server);
+                }
+            });
+        ranking.add(rss);
+        assertEquals(null, ranking.pick(null));
+        assertEquals(1, probed.size());
+        assertSame(rss, probed.get(0));
+        assertEquals(null, ranking.pick(null));
+        assertEquals("Should only probe once", 1, probed.size());
+
+        rss.onSuccess(10L, 1);
+        assertFalse(rss.isOpen());
+        assertSame(rss, ranking.pick(null));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final AtomicInteger probes = new AtomicInteger();
+        final StunServerRanking ranking = new StunServerRanking(
+            new StunServerRanking.Prober() {
+                @Override
+                public void probe(final RankedStunServer server) {
+                    probes.incrementAndGet();
+                }
+            });
+        final RankedStunServer down = server(200);
+        down.markDown(1L);
+        ranking.add(down);
+        Thread.sleep(20);
+
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> error =
+            new AtomicReference<Throwable>();
+        for (int i = 0; i < threads; i++) {
+            final int id = i;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final RankedStunServer rss = server(id + 1);
+                        ranking.add(rss);
+                        ranking.add(server(id + 1));
+                        for (int j = 0; j < 1000; j++) {
+                            rss.onSuccess(10L, 1);
+                            ranking.get(rss.getAddress()).onSuccess(10L, 1);
+                            if (ranking.pick(null) == null) {
+                                throw new AssertionError("No server");
+                            }
+                        }
+                    } catch (final Throwable t) {
+                        error.set(t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+            thread.start();
+        }
+        start.countDown();
+        done.await();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        assertEquals(threads + 1, ranking.count(null));
+        assertEquals(threads + 1, ranking.getScores().size());
+        assertEquals("Only one thread should probe", 1, probes.get());
+        for (int i = 0; i < threads; i++) {
+            final RankedStunServer rss =
+                ranking.get(new InetSocketAddress("127.0.0." + (i + 1), 3478));
+            assertEquals(10.0, rss.getRtt(), 0.01);
+            assertEquals(0.0, rss.getLossRate(), 0.0);
+        }
+    }
+
+    @Test
+    public void testTwoChoiceSelection() throws Exception {
+        final RankedStunServer[] servers = new RankedStunServer[8];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = server(i + 1);
+            servers[i].onSuccess(10L * (i + 1), 1);
+        }
+        servers[3].markDown(60 * 1000L);
+        final StunServerRanking ranking = ranking(servers);
+        final int[] picks = new int[servers.length];
+        StunClientConfig.setTwoChoiceServerSelection(true);
+        try {
+            for (int i = 0; i < 4000; i++) {
+                final RankedStunServer rss = ranking.pick(null);
+                for (int j = 0; j < servers.length; j++) {
+                    if (servers[j] == rss) {
+                        picks[j]++;
+                    }
+                }
+            }
+        } finally {
+            StunClientConfig.setTwoChoiceServerSelection(false);
+        }
+        assertEquals("Never the worst server", 0, picks[servers.length - 1]);
+        assertEquals("Never an open breaker", 0, picks[3]);
+        for (int i = 1; i < servers.length - 1; i++) {
+            if (i != 3) {
+                assertTrue("Spread load: " + Arrays.toString(picks),
+                    picks[i] > 0);
+            }
+        }
+        assertTrue("Best should be picked most: " + Arrays.toString(picks),
+            picks[0] > picks[1] && picks[1] > picks[2]);
+
+        // Without sampling we always get the best.
+        assertSame(servers[0], ranking.pick(null));
+    }
+
+    private static StunServerRanking ranking(
+        final RankedStunServer... servers) {
+        final StunServerRanking ranking = new StunServerRanking(
+            new StunServerRanking.Prober() {
+                @Override
+                public void probe(final RankedStunServer server) {
+                    // No network here.
+                }
+            });
+        for (final RankedStunServer rss : servers) {
+            ranking.add(rss);
+        }
+        return ranking;
+    }
+
+    private static RankedStunServer server(final int host) throws Exception {
+        return new RankedStunServer(new InetSocketAddress(
+            "127.0.0." + host, 3478));
+    }
+}
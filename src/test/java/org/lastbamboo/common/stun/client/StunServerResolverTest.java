@@ -0,0 +1,51 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for resolving STUN server addresses.
+ */
+public class StunServerResolverTest {
+
+    @Test
+    public void testResolvedPassesThrough() throws Exception {
+        final InetSocketAddress address =
+            new InetSocketAddress("127.0.0.1", 3478);
+        final CompletableFuture<InetSocketAddress> future =
+            StunServerResolver.resolve(address);
+        assertTrue(future.isDone());
+        assertSame(address, future.get());
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        StunServerResolver.clear();
+        final InetSocketAddress address =
+            InetSocketAddress.createUnresolved("localhost", 3478);
+        final CompletableFuture<InetSocketAddress> future =
+            StunServerResolver.resolve(address);
+        final InetSocketAddress resolved = future.get(5, TimeUnit.SECONDS);
+        assertFalse(resolved.isUnresolved());
+        assertTrue(resolved.getAddress().isLoopbackAddress());
+        assertEquals(3478, resolved.getPort());
+        assertSame(future, StunServerResolver.resolve(address));
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        final InetSocketAddress address =
+            InetSocketAddress.createUnresolved("no-such-host.invalid", 3478);
+        final InetSocketAddress resolved =
+            StunServerResolver.resolve(address).get(30, TimeUnit.SECONDS);
+        assertTrue(resolved.isUnresolved());
+    }
+}
@@ -0,0 +1,155 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for reading and writing raw STUN messages.
+ */
+public class StunWireTest {
+
+    @Test
+    public void testReadHeader() throws Exception {
+        final byte[] id = transactionId();
+        final ByteBuffer buf = ByteBuffer.allocate(StunWire.HEADER_LENGTH);
+        BindingRequestTemplate.PLAIN.encode(buf, id);
+        buf.flip();
+        assertEquals(StunWire.HEADER_LENGTH, buf.remaining());
+        assertEquals(StunWire.BINDING_REQUEST, StunWire.getType(buf));
+        assertEquals(StunWire.MAGIC_COOKIE, StunWire.getCookie(buf));
+        assertEquals(TransactionIdTable.highBits(id), 
+            StunWire.getTransactionHighBits(buf));
+        assertEquals(TransactionIdTable.lowBits(id), 
+            StunWire.getTransactionLowBits(buf));
+    }
+
+    @Test
+    public void testXorMappedAddress() throws Exception {
+        final InetSocketAddress ipv4 = 
+            new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 32853);
+        assertEquals(ipv4, StunWire.readMappedAddress(
+            response(ipv4, StunWire.XOR_MAPPED_ADDRESS)));
+        
+        final InetSocketAddress ipv6 = new InetSocketAddress(
+            InetAddress.getByName("2001:db8:1234:5678:11:2233:4455:6677"), 
+            32853);
+        assertEquals(ipv6, StunWire.readMappedAddress(
+            response(ipv6, StunWire.XOR_MAPPED_ADDRESS)));
+    }
+
+    @Test
+    public void testMappedAddress() throws Exception {
+        final InetSocketAddress isa = 
+            new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 5000);
+        assertEquals(isa, StunWire.readMappedAddress(
+            response(isa, StunWire.MAPPED_ADDRESS)));
+    }
+
+    @Test
+    public void testErrorCode() throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(32);
+        buf.putShort((short) StunWire.BINDING_ERROR_RESPONSE);
+        buf.putShort((short) 8);
+        buf.put(transactionId());
+        buf.putShort((short) StunWire.ERROR_CODE);
+        buf.putShort((short) 4);
+        buf.put((byte) 0).put((byte) 0).put((byte) 4).put((byte) 20);
+        buf.flip();
+        assertEquals(420, StunWire.readErrorCode(buf));
+        assertNull(StunWire.readMappedAddress(buf));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocate(10);
+        assertEquals(-1, StunWire.getType(buf));
+        
+        // An attribute that claims to run past the end of the message.
+        final ByteBuffer bad = ByteBuffer.allocate(28);
+        bad.putShort((short) StunWire.BINDING_SUCCESS_RESPONSE);
+        bad.putShort((short) 8);
+        bad.put(transactionId());
+        bad.putShort((short) StunWire.XOR_MAPPED_ADDRESS);
+        bad.putShort((short) 20);
+        bad.putInt(0);
+        bad.flip();
+        assertNull(StunWire.readMappedAddress(bad));
+    }
+
+    @Test
+    public void testShortAddress() throws Exception {
+        // An IPv6 address in an attribute only long enough for IPv4, 
+        // followed by another attribute the address would run into.
+        final ByteBuffer buf = 
+            ByteBuffer.allocate(StunWire.HEADER_LENGTH + 24);
+        buf.putShort((short) StunWire.BINDING_SUCCESS_RESPONSE);
+        buf.putShort((short) 24);
+        buf.put(transactionId());
+        buf.putShort((short) StunWire.XOR_MAPPED_ADDRESS);
+        buf.putShort((short) 8);
+        buf.put((byte) 0);
+        buf.put((byte) 2);
+        buf.putShort((short) 5000);
+        buf.putInt(0);
+        buf.putShort((short) 0x8022);
+        buf.putShort((short) 8);
+        buf.putLong(0L);
+        buf.flip();
+        assertNull(StunWire.readMappedAddress(buf));
+        
+        // An error code attribute with no room for the code.
+        final ByteBuffer error = 
+            ByteBuffer.allocate(StunWire.HEADER_LENGTH + 8);
+        error.putShort((short) StunWire.BINDING_ERROR_RESPONSE);
+        error.putShort((short) 8);
+        error.put(transactionId());
+        error.putShort((short) StunWire.ERROR_CODE);
+        error.putShort((short) 2);
+        error.putInt(0x0000FFFF);
+        error.flip();
+        assertEquals(-1, StunWire.readErrorCode(error));
+    }
+
+    static byte[] transactionId() {
+        final byte[] id = new byte[16];
+        ByteBuffer.wrap(id).putInt(StunWire.MAGIC_COOKIE);
+        for (int i = 4; i < id.length; i++) {
+            id[i] = (byte) (i * 17);
+        }
+        return id;
+    }
+
+    /**
+     * Builds a binding success response with a single address attribute,
+     * encoding it the way a server would.
+     */
+    static ByteBuffer response(final InetSocketAddress isa, 
+        final int type) {
+        final byte[] id = transactionId();
+        final byte[] address = isa.getAddress().getAddress();
+        final boolean xor = type != StunWire.MAPPED_ADDRESS;
+        final ByteBuffer buf = 
+            ByteBuffer.allocate(StunWire.HEADER_LENGTH + 8 + address.length);
+        buf.putShort((short) StunWire.BINDING_SUCCESS_RESPONSE);
+        buf.putShort((short) (4 + 4 + address.length));
+        buf.put(id);
+        buf.putShort((short) type);
+        buf.putShort((short) (4 + address.length));
+        buf.put((byte) 0);
+        buf.put((byte) (address.length == 4 ? 1 : 2));
+        final int port = isa.getPort();
+        buf.putShort((short) (xor ? port ^ (StunWire.MAGIC_COOKIE >>> 16) : 
+            port));
+        for (int i = 0; i < address.length; i++) {
+            buf.put((byte) (xor ? address[i] ^ id[i] : address[i]));
+        }
+        buf.flip();
+        return buf;
+    }
+}
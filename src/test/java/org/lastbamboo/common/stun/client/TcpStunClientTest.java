@@ -0,0 +1,227 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.littleshoot.stun.stack.message.BindingRequest;
+import org.littleshoot.stun.stack.message.BindingSuccessResponse;
+import org.littleshoot.stun.stack.message.NullStunMessage;
+import org.littleshoot.stun.stack.message.StunMessage;
+
+/**
+ * Tests for the TCP STUN client.
+ */
+public class TcpStunClientTest {
+
+    @Test public void testPipelining() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        final AtomicInteger connections = new AtomicInteger();
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(server, connections);
+            }
+        }, "Loopback-TCP-STUN-Server");
+        thread.setDaemon(true);
+        thread.start();
+
+        final TcpStunClient client = new TcpStunClient(
+            (InetSocketAddress) server.getLocalSocketAddress());
+        try {
+            final Collection<BindingRequest> requests =
+                new ArrayList<BindingRequest>();
+            for (int i = 0; i < 10; i++) {
+                requests.add(new BindingRequest());
+            }
+            final List<CompletableFuture<StunMessage>> futures =
+                client.writeAllAsync(requests,
+                    (InetSocketAddress) server.getLocalSocketAddress());
+            for (final CompletableFuture<StunMessage> future : futures) {
+                final StunMessage response = future.get(5, TimeUnit.SECONDS);
+                assertTrue("Unexpected response: " + response,
+                    response instanceof BindingSuccessResponse);
+            }
+            assertTrue(client.getServerReflexiveAddress().getAddress().
+                isLoopbackAddress());
+            assertEquals("Requests should share one connection", 1,
+                connections.get());
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test public void testServerClose() throws Exception {
+        final ServerSocket server = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // Hang up without answering.
+                    final Socket sock = server.accept();
+                    sock.getInputStream().read();
+                    sock.close();
+                } catch (final IOException e) {
+                    // Socket closed.
+                }
+            }
+        }, "Closing-TCP-STUN-Server");
+        thread.setDaemon(true);
+        thread.start();
+
+        final TcpStunClient client = new TcpStunClient(
+            (InetSocketAddress) server.getLocalSocketAddress());
+        try {
+            final StunMessage response = client.writeAsync(
+                new BindingRequest(),
+                (InetSocketAddress) server.getLocalSocketAddress()).get(5,
+                    TimeUnit.SECONDS);
+            assertTrue(response instanceof NullStunMessage);
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+
+    @Test public void testConnectRefused() throws Exception {
+        // Find a port nobody's listening on.
+        final ServerSocket server = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        final InetSocketAddress address =
+            (InetSocketAddress) server.getLocalSocketAddress();
+        server.close();
+
+        final TcpStunClient client = new TcpStunClient(address);
+        try {
+            // Writing never waits on the handshake, and the refused
+            // connection fails the request.
+            final CompletableFuture<StunMessage> future =
+                client.writeAsync(new BindingRequest(), address);
+            final StunMessage response = future.get(5, TimeUnit.SECONDS);
+            assertTrue(response instanceof NullStunMessage);
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test public void testAttemptTimeout() throws Exception {
+        // Takes the connection but never answers.
+        final ServerSocket silent = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        final ServerSocket server = new ServerSocket(0, 50,
+            InetAddress.getLoopbackAddress());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(server, new AtomicInteger());
+            }
+        }, "Loopback-TCP-STUN-Server");
+        thread.setDaemon(true);
+        thread.start();
+
+        final TcpStunClient client = new TcpStunClient(
+            (InetSocketAddress) silent.getLocalSocketAddress(),
+            (InetSocketAddress) server.getLocalSocketAddress());
+        try {
+            final long start = System.currentTimeMillis();
+            final InetSocketAddress srflx =
+                client.getServerReflexiveAddressAsync(300L).get(5,
+                    TimeUnit.SECONDS);
+            final long elapsed = System.currentTimeMillis() - start;
+            assertTrue(srflx.getAddress().isLoopbackAddress());
+            assertTrue("Took " + elapsed + "ms", elapsed < 2000L);
+
+            // The silent server's transaction leaves the table on the
+            // thread that cancelled it, which may lag behind our answer.
+            final long deadline = System.currentTimeMillis() + 1000;
+            while (client.getPendingTransactions() > 0 &&
+                System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, client.getPendingTransactions());
+        } finally {
+            client.close();
+            silent.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Answers pipelined requests in pairs, second one first, so responses
+     * arrive out of order.
+     */
+    private static void serve(final ServerSocket server,
+        final AtomicInteger connections) {
+        while (!server.isClosed()) {
+            try {
+                final Socket sock = server.accept();
+                connections.incrementAndGet();
+                final DataInputStream in =
+                    new DataInputStream(sock.getInputStream());
+                final OutputStream out = sock.getOutputStream();
+                byte[] held = null;
+                while (true) {
+                    final byte[] request = new byte[StunWire.HEADER_LENGTH];
+                    in.readFully(request);
+                    final int length = ((request[2] & 0xFF) << 8) |
+                        (request[3] & 0xFF);
+                    in.skipBytes(length);
+                    final byte[] response = response(request, sock);
+                    if (held == null && in.available() > 0) {
+                        held = response;
+                    } else if (held == null) {
+                        out.write(response);
+                        out.flush();
+                    } else {
+                        out.write(response);
+                        out.write(held);
+                        out.flush();
+                        held = null;
+                    }
+                }
+            } catch (final IOException e) {
+                // Closed.
+            }
+        }
+    }
+
+    private static byte[] response(final byte[] request, final Socket sock) {
+        final byte[] out = new byte[StunWire.HEADER_LENGTH + 12];
+        final ByteBuffer buf = ByteBuffer.wrap(out);
+        buf.putShort((short) StunWire.BINDING_SUCCESS_RESPONSE);
+        buf.putShort((short) 12);
+        buf.put(request, 4, 16);
+        buf.putShort((short) StunWire.XOR_MAPPED_ADDRESS);
+        buf.putShort((short) 8);
+        buf.put((byte) 0);
+        buf.put((byte) 1);
+        buf.putShort((short) (sock.getPort() ^
+            (StunWire.MAGIC_COOKIE >>> 16)));
+        final byte[] address = sock.getInetAddress().getAddress();
+        for (int i = 0; i < address.length; i++) {
+            buf.put((byte) (address[i] ^ request[4 + i]));
+        }
+        return out;
+    }
+}
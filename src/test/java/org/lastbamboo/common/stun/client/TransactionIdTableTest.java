@@ -0,0 +1,118 @@
+package org.lastbamboo.common.stun.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the primitive transaction ID table.
+ */
+public class TransactionIdTableTest {
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        final int count = 1000;
+        final TransactionIdTable<Integer> table = 
+            new TransactionIdTable<Integer>(count);
+        final Random random = new Random(7L);
+        final long[] highs = new long[count];
+        final int[] lows = new int[count];
+        for (int i = 0; i < count; i++) {
+            highs[i] = random.nextLong();
+            lows[i] = random.nextInt();
+            assertNull(table.put(highs[i], lows[i], i));
+        }
+        assertEquals(count, table.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.valueOf(i), table.get(highs[i], lows[i]));
+        }
+        
+        // Remove every other entry and make sure the rest are still there.
+        for (int i = 0; i < count; i += 2) {
+            assertEquals(Integer.valueOf(i), table.remove(highs[i], lows[i]));
+        }
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                assertNull(table.get(highs[i], lows[i]));
+            } else {
+                assertEquals(Integer.valueOf(i), table.get(highs[i], lows[i]));
+            }
+        }
+        assertEquals(count / 2, table.size());
+    }
+
+    @Test
+    public void testSameHighBits() throws Exception {
+        final TransactionIdTable<Integer> table = 
+            new TransactionIdTable<Integer>(16);
+        for (int i = 0; i < 16; i++) {
+            table.put(42L, i, i);
+        }
+        table.remove(42L, 3);
+        for (int i = 0; i < 16; i++) {
+            if (i == 3) {
+                assertNull(table.get(42L, i));
+            } else {
+                assertEquals(Integer.valueOf(i), table.get(42L, i));
+            }
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        final TransactionIdTable<Integer> table = 
+            new TransactionIdTable<Integer>(4);
+        for (int i = 0; i < 4; i++) {
+            assertNull(table.put(i, i, i));
+        }
+        
+        // The oldest entry gets pushed out once we're full.
+        assertEquals(Integer.valueOf(0), table.put(4, 4, 4));
+        assertNull(table.get(0, 0));
+        assertEquals(4, table.size());
+        
+        // Entries that already completed free up room, so nothing's 
+        // evicted until we're full again, and then only the oldest live
+        // entry.
+        table.remove(1, 1);
+        assertNull(table.put(5, 5, 5));
+        assertEquals(Integer.valueOf(2), table.put(6, 6, 6));
+        assertEquals(Integer.valueOf(3), table.put(7, 7, 7));
+        assertEquals(4, table.size());
+    }
+
+    @Test
+    public void testNoEvictionBelowCapacity() throws Exception {
+        final TransactionIdTable<Integer> table = 
+            new TransactionIdTable<Integer>(4);
+        
+        // A slow transaction that stays in the table while many quick ones
+        // come and go shouldn't ever be evicted.
+        assertNull(table.put(-1, -1, -1));
+        for (int i = 0; i < 1000; i++) {
+            assertNull(table.put(i, i, i));
+            assertEquals(Integer.valueOf(i), table.remove(i, i));
+        }
+        assertEquals(Integer.valueOf(-1), table.get(-1, -1));
+        assertEquals(1, table.size());
+        
+        // Filling up still evicts the slow one first since it's oldest.
+        for (int i = 0; i < 3; i++) {
+            assertNull(table.put(2000 + i, i, i));
+        }
+        assertEquals(Integer.valueOf(-1), table.put(3000, 0, 0));
+    }
+
+    @Test
+    public void testKeyBits() throws Exception {
+        final byte[] id = new byte[16];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (byte) i;
+        }
+        assertEquals(0x0405060708090A0BL, TransactionIdTable.highBits(id));
+        assertEquals(0x0C0D0E0F, TransactionIdTable.lowBits(id));
+    }
+}